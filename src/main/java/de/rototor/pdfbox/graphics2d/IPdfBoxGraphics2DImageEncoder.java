@@ -33,7 +33,9 @@ public interface IPdfBoxGraphics2DImageEncoder {
 	 * @param contentStream
 	 *            the content stream of the page
 	 * @param image
-	 *            the image to encode
+	 *            the image to encode. This may be a
+	 *            {@link PdfBoxGraphics2DEncodedImage}, which must be decoded
+	 *            before it can be drawn.
 	 * @return the encoded image
 	 */
 	PDImageXObject encodeImage(PDDocument document, PDPageContentStream contentStream, Image image);
@@ -76,6 +76,17 @@ public class PdfBoxGraphics2D extends Graphics2D {
 	private Color backgroundColor;
 	private final CopyInfo copyInfo;
 	private final PDRectangle bbox;
+	private final PdfBoxGraphics2DBulkPath bulkPath;
+	private final Map<PDShading, PDColor> shadingPatternColors;
+	/*
+	 * Graphics for a pattern tile, which is drawn in the middle of drawing its
+	 * parent graphics
+	 */
+	private final boolean patternTile;
+	private final PdfBoxGraphics2DImageDownsampler imageDownsampler;
+	private float maxImageResolution;
+	private final PdfBoxGraphics2DSubImageCache subImageCache;
+	private boolean extractSubImages;
 
 	/**
 	 * Set a new color mapper.
@@ -99,6 +110,47 @@ public class PdfBoxGraphics2D extends Graphics2D {
 		this.imageEncoder = imageEncoder;
 	}
 
+	/**
+	 * Scale images down to the given resolution before they are encoded, if they
+	 * are drawn with a higher resolution. The resolution is computed from the
+	 * transform the image is drawn with, assuming that one unit of the XForm is
+	 * one point (1/72 inch) on the page. The scaling honors the
+	 * {@link RenderingHints#KEY_INTERPOLATION} rendering hint.
+	 * {@link PdfBoxGraphics2DEncodedImage}s are always embedded as they are.
+	 *
+	 * The scaled images are kept by a {@link PdfBoxGraphics2DLosslessImageEncoder}
+	 * for its document, so share one encoder between the graphics of all pages to
+	 * embed an image drawn on many pages only once.
+	 *
+	 * @param maxImageResolution
+	 *            the maximum resolution in dots per inch, 0 disables the scaling.
+	 *            This is the default.
+	 */
+	@SuppressWarnings({ "unused" })
+	public void setMaxImageResolution(float maxImageResolution) {
+		this.maxImageResolution = maxImageResolution;
+	}
+
+	/**
+	 * When only a small region of a BufferedImage is drawn using
+	 * {@link #drawImage(Image, int, int, int, int, int, int, int, int, ImageObserver)},
+	 * e.g. a tile of a map or a sprite of a sprite sheet, only embed this region
+	 * instead of the whole image. Drawing the same region again reuses the
+	 * embedded region. This is disabled by default, as it embeds pixels twice if
+	 * all regions of an image are drawn on the same page. Like with
+	 * {@link #setMaxImageResolution(float)}, share one
+	 * {@link PdfBoxGraphics2DLosslessImageEncoder} between the pages to reuse the
+	 * regions on all pages.
+	 *
+	 * @param extractSubImages
+	 *            true to embed only the drawn region of an image if it is less
+	 *            than a quarter of the image.
+	 */
+	@SuppressWarnings({ "unused" })
+	public void setExtractSubImages(boolean extractSubImages) {
+		this.extractSubImages = extractSubImages;
+	}
+
 	/**
 	 * Set a new paint applier. You should always derive your custom paint applier
 	 * from the {@link IPdfBoxGraphics2DPaintApplier} and just extend the paint
@@ -229,6 +281,7 @@ public class PdfBoxGraphics2D extends Graphics2D {
 				xFormObject.getStream().createOutputStream(COSName.FLATE_DECODE));
 		contentStreamSaveState();
 
+		patternTile = parentGfx != null;
 		if (parentGfx != null) {
 			this.colorMapper = parentGfx.colorMapper;
 			this.fontTextDrawer = parentGfx.fontTextDrawer;
@@ -244,6 +297,10 @@ public class PdfBoxGraphics2D extends Graphics2D {
 		calcGfx = calcImage.createGraphics();
 		font = calcGfx.getFont();
 		copyInfo = null;
+		bulkPath = new PdfBoxGraphics2DBulkPath();
+		shadingPatternColors = new HashMap<PDShading, PDColor>();
+		imageDownsampler = new PdfBoxGraphics2DImageDownsampler();
+		subImageCache = new PdfBoxGraphics2DSubImageCache();
 
 	}
 
@@ -287,6 +344,13 @@ public class PdfBoxGraphics2D extends Graphics2D {
 		this.composite = gfx.composite;
 		this.renderingHints = new HashMap<Key, Object>(gfx.renderingHints);
 		this.xorColor = gfx.xorColor;
+		this.bulkPath = gfx.bulkPath;
+		this.shadingPatternColors = gfx.shadingPatternColors;
+		this.patternTile = gfx.patternTile;
+		this.imageDownsampler = gfx.imageDownsampler;
+		this.maxImageResolution = gfx.maxImageResolution;
+		this.subImageCache = gfx.subImageCache;
+		this.extractSubImages = gfx.extractSubImages;
 		this.saveCounter = 0;
 
 		contentStreamSaveState();
@@ -348,6 +412,14 @@ public class PdfBoxGraphics2D extends Graphics2D {
 		if (this.saveCounter != 0)
 			throw new IllegalStateException("SaveCounter should be 0, but is " + this.saveCounter);
 
+		/*
+		 * Images compressed in the background must be complete before the document is
+		 * saved. A pattern tile is part of the drawing of its parent, so waiting here
+		 * would block the drawing in the middle.
+		 */
+		if (!patternTile && imageEncoder instanceof PdfBoxGraphics2DLosslessImageEncoder)
+			((PdfBoxGraphics2DLosslessImageEncoder) imageEncoder).finishPendingImages(document);
+
 		document = null;
 		calcGfx.dispose();
 		calcImage.flush();
@@ -429,8 +501,36 @@ public class PdfBoxGraphics2D extends Graphics2D {
 	}
 
 	public void drawRenderedImage(RenderedImage img, AffineTransform xform) {
-		WritableRaster data = img.copyData(null);
-		drawImage(new BufferedImage(img.getColorModel(), data, false, null), xform, null);
+		if (img instanceof BufferedImage) {
+			drawImage((BufferedImage) img, xform, null);
+			return;
+		}
+
+		/*
+		 * The image is placed at its minX/minY
+		 */
+		AffineTransform imageTransform = xform == null ? new AffineTransform() : new AffineTransform(xform);
+		imageTransform.translate(img.getMinX(), img.getMinY());
+
+		/*
+		 * Large tiled images would need a lot of memory as a BufferedImage, so try
+		 * to encode them tile by tile.
+		 */
+		if (maxImageResolution <= 0 && imageEncoder instanceof PdfBoxGraphics2DLosslessImageEncoder) {
+			checkNoCopyActive();
+			PDImageXObject pdImage = ((PdfBoxGraphics2DLosslessImageEncoder) imageEncoder)
+					.encodeRenderedImage(document, img);
+			if (pdImage != null) {
+				drawImageXObject(pdImage, imageTransform, img.getWidth(), img.getHeight());
+				return;
+			}
+		}
+
+		ColorModel colorModel = img.getColorModel();
+		WritableRaster data = colorModel.createCompatibleWritableRaster(img.getWidth(), img.getHeight());
+		img.copyData(data.createWritableTranslatedChild(img.getMinX(), img.getMinY()));
+		drawImage(new BufferedImage(colorModel, data, colorModel.isAlphaPremultiplied(), null), imageTransform,
+				null);
 	}
 
 	public void drawRenderableImage(RenderableImage img, AffineTransform xform) {
@@ -482,11 +582,24 @@ public class PdfBoxGraphics2D extends Graphics2D {
 
 	public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2,
 			ImageObserver observer) {
-		return drawImage(img, dx1, dy1, dx2, dy2, sx1, sy2, sx2, sy2, null, observer);
+		return drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, null, observer);
 	}
 
 	public boolean drawImage(Image img, AffineTransform xform, ImageObserver obs) {
 		checkNoCopyActive();
+		Image imageToEncode = img;
+		if (maxImageResolution > 0)
+			imageToEncode = downsampleImage(img, imageTransform(xform),
+					renderingHints.get(RenderingHints.KEY_INTERPOLATION));
+		PDImageXObject pdImage = imageEncoder.encodeImage(document, contentStream, imageToEncode);
+		drawImageXObject(pdImage, xform, img.getWidth(obs), img.getHeight(obs));
+		return true;
+	}
+
+	/**
+	 * @return the transform from the image space to the PDF space
+	 */
+	private AffineTransform imageTransform(AffineTransform xform) {
 		AffineTransform tf = new AffineTransform();
 		tf.concatenate(baseTransform);
 		tf.concatenate(transform);
@@ -494,24 +607,77 @@ public class PdfBoxGraphics2D extends Graphics2D {
 		// Sometimes the xform can be null
 		if (xform != null)
 			tf.concatenate((AffineTransform) xform.clone());
+		return tf;
+	}
 
-		PDImageXObject pdImage = imageEncoder.encodeImage(document, contentStream, img);
+	/**
+	 * Draw the encoded image, the width and height are the size of the source
+	 * image in the image space.
+	 */
+	private void drawImageXObject(PDImageXObject pdImage, AffineTransform xform, int width, int height) {
+		AffineTransform tf = imageTransform(xform);
 		try {
 			contentStreamSaveState();
-			int imgHeight = img.getHeight(obs);
-			tf.translate(0, imgHeight);
+			tf.translate(0, height);
 			tf.scale(1, -1);
 			contentStream.transform(new Matrix(tf));
 
-			Object keyInterpolation = renderingHints.get(RenderingHints.KEY_INTERPOLATION);
-			if (RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR.equals(keyInterpolation))
+			if (RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR
+					.equals(renderingHints.get(RenderingHints.KEY_INTERPOLATION)))
 				pdImage.setInterpolate(false);
-			contentStream.drawImage(pdImage, 0, 0, img.getWidth(obs), imgHeight);
+			contentStream.drawImage(pdImage, 0, 0, width, height);
 			contentStreamRestoreState();
 		} catch (IOException e) {
 			throwException(e);
 		}
-		return true;
+	}
+
+	/**
+	 * @return the image scaled down to {@link #maxImageResolution}, or the image
+	 *         itself if its resolution is not higher.
+	 */
+	private Image downsampleImage(Image img, AffineTransform tf, Object keyInterpolation) {
+		if (img instanceof PdfBoxGraphics2DEncodedImage)
+			return img;
+		int width = img.getWidth(null);
+		int height = img.getHeight(null);
+		if (width <= 0 || height <= 0)
+			return img;
+
+		/*
+		 * The length of one image pixel on the page, in points
+		 */
+		double pixelWidth = Math.hypot(tf.getScaleX(), tf.getShearY());
+		double pixelHeight = Math.hypot(tf.getShearX(), tf.getScaleY());
+		int targetWidth = (int) Math.ceil(width * pixelWidth * maxImageResolution / 72);
+		int targetHeight = (int) Math.ceil(height * pixelHeight * maxImageResolution / 72);
+		if (targetWidth >= width && targetHeight >= height)
+			return img;
+
+		if (keyInterpolation == null)
+			keyInterpolation = RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+		return getImageDownsampler().downsample(img, Math.max(1, Math.min(targetWidth, width)),
+				Math.max(1, Math.min(targetHeight, height)), keyInterpolation);
+	}
+
+	/**
+	 * @return the downsampler of the image encoder, which is shared by all pages
+	 *         of the document. Other encoders get the one of this graphics.
+	 */
+	private PdfBoxGraphics2DImageDownsampler getImageDownsampler() {
+		if (imageEncoder instanceof PdfBoxGraphics2DLosslessImageEncoder)
+			return ((PdfBoxGraphics2DLosslessImageEncoder) imageEncoder).getImageDownsampler(document);
+		return imageDownsampler;
+	}
+
+	/**
+	 * @return the sub image cache of the image encoder, which is shared by all
+	 *         pages of the document. Other encoders get the one of this graphics.
+	 */
+	private PdfBoxGraphics2DSubImageCache getSubImageCache() {
+		if (imageEncoder instanceof PdfBoxGraphics2DLosslessImageEncoder)
+			return ((PdfBoxGraphics2DLosslessImageEncoder) imageEncoder).getSubImageCache(document);
+		return subImageCache;
 	}
 
 	public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2,
@@ -537,15 +703,27 @@ public class PdfBoxGraphics2D extends Graphics2D {
 			}
 
 			/*
-			 * Build the transform for the image
+			 * Build the transform for the image, it maps the source rectangle onto the
+			 * destination rectangle.
 			 */
+			int sourceWidth = sx2 - sx1;
+			int sourceHeight = sy2 - sy1;
+			if (sourceWidth == 0 || sourceHeight == 0) {
+				contentStreamRestoreState();
+				return true;
+			}
 			AffineTransform tf = new AffineTransform();
 			tf.translate(dx1, dy1);
-			float imgWidth = img.getWidth(observer);
-			float imgHeight = img.getHeight(observer);
-			tf.scale((float) width / imgWidth, (float) height / imgHeight);
+			tf.scale((double) width / sourceWidth, (double) height / sourceHeight);
 			tf.translate(-sx1, -sy1);
-			tf.scale((sx2 - sx1) / imgWidth, (sy2 - sy1) / imgHeight);
+
+			if (extractSubImages && img instanceof BufferedImage) {
+				Rectangle region = subImageRegion((BufferedImage) img, sx1, sy1, sx2, sy2);
+				if (region != null) {
+					img = getSubImageCache().getSubImage((BufferedImage) img, region);
+					tf.translate(region.x, region.y);
+				}
+			}
 
 			drawImage(img, tf, observer);
 			contentStreamRestoreState();
@@ -556,6 +734,28 @@ public class PdfBoxGraphics2D extends Graphics2D {
 		}
 	}
 
+	/**
+	 * @return the region of the image to embed, or null if the whole image should
+	 *         be embedded.
+	 */
+	private static Rectangle subImageRegion(BufferedImage img, int sx1, int sy1, int sx2, int sy2) {
+		/*
+		 * One pixel more on each side, so that viewers which interpolate the image
+		 * see the same neighbour pixels at the edges as with the whole image. The
+		 * clip hides them.
+		 */
+		Rectangle region = new Rectangle(Math.min(sx1, sx2) - 1, Math.min(sy1, sy2) - 1, Math.abs(sx2 - sx1) + 2,
+				Math.abs(sy2 - sy1) + 2);
+		region = region.intersection(new Rectangle(0, 0, img.getWidth(), img.getHeight()));
+		if (region.isEmpty())
+			return null;
+		long regionArea = (long) region.width * region.height;
+		long imageArea = (long) img.getWidth() * img.getHeight();
+		if (regionArea * 4 > imageArea)
+			return null;
+		return region;
+	}
+
 	private void drawStringUsingShapes(AttributedCharacterIterator iterator, float x, float y) {
 		Stroke originalStroke = stroke;
 		Paint originalPaint = paint;
@@ -726,6 +926,22 @@ public class PdfBoxGraphics2D extends Graphics2D {
 	}
 
 	private void applyShadingAsColor(PDShading shading) throws IOException {
+		/*
+		 * The pattern always covers the bbox of this XForm, so we only need one
+		 * pattern per shading. The shadings are already made unique by the paint
+		 * applier.
+		 */
+		PDColor patternColor = shadingPatternColors.get(shading);
+		if (patternColor == null) {
+			patternColor = createShadingPatternColor(shading);
+			shadingPatternColors.put(shading, patternColor);
+		}
+
+		contentStream.setNonStrokingColor(patternColor);
+		contentStream.setStrokingColor(patternColor);
+	}
+
+	private PDColor createShadingPatternColor(PDShading shading) throws IOException {
 		/*
 		 * If the paint has a shading we must create a tiling pattern and set that as
 		 * stroke color...
@@ -751,10 +967,7 @@ public class PdfBoxGraphics2D extends Graphics2D {
 
 		PDColorSpace patternCS1 = new PDPattern(null);
 		COSName tilingPatternName = xFormObject.getResources().add(pattern);
-		PDColor patternColor = new PDColor(tilingPatternName, patternCS1);
-
-		contentStream.setNonStrokingColor(patternColor);
-		contentStream.setStrokingColor(patternColor);
+		return new PDColor(tilingPatternName, patternCS1);
 	}
 
 	private PDShading applyPaint() throws IOException {
@@ -799,6 +1012,14 @@ public class PdfBoxGraphics2D extends Graphics2D {
 	};
 
 	private PDShading applyPaint(Paint paintToApply) throws IOException {
+		/*
+		 * Opaque colors are the most common paint, the default applier can set them
+		 * without any of the generic paint handling.
+		 */
+		if (paintToApply instanceof Color && paintApplier instanceof PdfBoxGraphics2DPaintApplier
+				&& ((PdfBoxGraphics2DPaintApplier) paintApplier).applyOpaqueColor((Color) paintToApply,
+						contentStream, paintEnv))
+			return null;
 		AffineTransform tf = new AffineTransform(baseTransform);
 		tf.concatenate(transform);
 		return paintApplier.applyPaint(paintToApply, contentStream, tf, paintEnv);
@@ -982,7 +1203,14 @@ public class PdfBoxGraphics2D extends Graphics2D {
 	 * @return true when all required values are finite
 	 */
 	private static boolean isFinite(float[] coords, int count) {
-		for (int i = 0; i < count; i++)
+		return isFinite(coords, 0, count);
+	}
+
+	/**
+	 * @return true when all required values starting at offset are finite
+	 */
+	private static boolean isFinite(float[] coords, int offset, int count) {
+		for (int i = offset; i < offset + count; i++)
 			if (!isFinite(coords[i]))
 				return false;
 		return true;
@@ -998,6 +1226,8 @@ public class PdfBoxGraphics2D extends Graphics2D {
 
 		AffineTransform tf = new AffineTransform(baseTransform);
 		tf.concatenate(transform);
+		if (PdfBoxGraphics2DBulkPath.isSupported(clip))
+			return walkBulkPath((Polygon) clip, tf);
 		PathIterator pi = clip.getPathIterator(tf);
 		float[] coords = new float[6];
 		while (!pi.isDone()) {
@@ -1028,6 +1258,28 @@ public class PdfBoxGraphics2D extends Graphics2D {
 		return pi.getWindingRule() == PathIterator.WIND_EVEN_ODD;
 	}
 
+	/**
+	 * Walk a {@link Polygon}. All points are transformed at once, which is much
+	 * faster for large polygons than transforming every segment in the
+	 * {@link PathIterator}.
+	 *
+	 * @return true if we need to use the even odd winding rule
+	 */
+	private boolean walkBulkPath(Polygon polygon, AffineTransform tf) throws IOException {
+		bulkPath.load(polygon, tf);
+		int pointCount = bulkPath.getPointCount();
+		float[] coords = bulkPath.getCoords();
+		if (isFinite(coords, 0, 2))
+			contentStream.moveTo(coords[0], coords[1]);
+		for (int i = 1; i < pointCount; i++) {
+			if (isFinite(coords, i * 2, 2))
+				contentStream.lineTo(coords[i * 2], coords[i * 2 + 1]);
+		}
+		if (!(polygon instanceof PdfBoxGraphics2DBulkPath.Polyline))
+			contentStream.closePath();
+		return true;
+	}
+
 	private void checkNoCopyActive() {
 		/*
 		 * As long as a copy is in use you are not allowed to do anything here
@@ -1087,11 +1339,7 @@ public class PdfBoxGraphics2D extends Graphics2D {
 	}
 
 	public void drawPolyline(int[] xPoints, int[] yPoints, int nPoints) {
-		Path2D.Double path = new Path2D.Double();
-		path.moveTo(xPoints[0], yPoints[0]);
-		for (int i = 1; i < nPoints; i++)
-			path.lineTo(xPoints[i], yPoints[i]);
-		draw(path);
+		draw(new PdfBoxGraphics2DBulkPath.Polyline(xPoints, yPoints, nPoints));
 	}
 
 	public void drawPolygon(int[] xPoints, int[] yPoints, int nPoints) {
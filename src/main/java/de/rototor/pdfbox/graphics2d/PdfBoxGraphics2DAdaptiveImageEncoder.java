@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encodes photos using lossy JPEG (DCT) compression and all other images, e.g.
+ * charts, icons or screenshots, using lossless compression.
+ *
+ * Whether an image is a photo is guessed from a sample of its pixels: photos
+ * have many different colors and only few neighbouring pixels with exactly the
+ * same color. Images are reused like in
+ * {@link PdfBoxGraphics2DLosslessImageEncoder}.
+ */
+public class PdfBoxGraphics2DAdaptiveImageEncoder extends PdfBoxGraphics2DLosslessImageEncoder {
+	/*
+	 * Smaller images are always encoded lossless, JPEG does not save much there.
+	 */
+	private static final int MIN_PHOTO_PIXELS = 64 * 64;
+	private static final int SAMPLES_PER_AXIS = 64;
+
+	private float quality = 0.75f;
+
+	/**
+	 * @param quality
+	 *            the JPEG quality between 0 and 1, default is 0.75.
+	 */
+	@SuppressWarnings("unused")
+	public void setQuality(float quality) {
+		this.quality = quality;
+	}
+
+	@Override
+	protected PDImageXObject encodeBufferedImage(PDDocument document, BufferedImage bi) throws IOException {
+		if (PdfBoxGraphics2DDCTImageEncoder.isJPEGEncodable(bi) && isPhoto(bi))
+			return PdfBoxGraphics2DDCTImageEncoder.encodeJPEG(document, bi, quality);
+		return super.encodeBufferedImage(document, bi);
+	}
+
+	/**
+	 * Guess if the image is a photo. This only looks at up to 64x64 pixel pairs,
+	 * so it is cheap even for large images.
+	 *
+	 * @return true if the image should be encoded lossy
+	 */
+	protected boolean isPhoto(BufferedImage bi) {
+		int width = bi.getWidth();
+		int height = bi.getHeight();
+		if ((long) width * height < MIN_PHOTO_PIXELS || width < 2)
+			return false;
+
+		int stepX = (width - 1 + SAMPLES_PER_AXIS - 1) / SAMPLES_PER_AXIS;
+		int stepY = (height + SAMPLES_PER_AXIS - 1) / SAMPLES_PER_AXIS;
+		int[] samples = new int[SAMPLES_PER_AXIS * SAMPLES_PER_AXIS];
+		int sampleCount = 0;
+		int flatCount = 0;
+		for (int y = 0; y < height; y += stepY) {
+			for (int x = 0; x + 1 < width; x += stepX) {
+				int rgb = bi.getRGB(x, y);
+				if (rgb == bi.getRGB(x + 1, y))
+					flatCount++;
+				samples[sampleCount++] = rgb;
+			}
+		}
+
+		/*
+		 * Graphics consist mostly of flat areas. Photos may have a plain background,
+		 * but not much more.
+		 */
+		if (flatCount * 10 > sampleCount * 7)
+			return false;
+
+		Arrays.sort(samples, 0, sampleCount);
+		int distinctColors = 1;
+		for (int i = 1; i < sampleCount; i++)
+			if (samples[i] != samples[i - 1])
+				distinctColors++;
+		return distinctColors * 4 >= sampleCount;
+	}
+}
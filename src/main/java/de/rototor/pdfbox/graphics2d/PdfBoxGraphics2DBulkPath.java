@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+
+/**
+ * Transforms all points of a {@link Polygon} in one go, straight from its
+ * point arrays, instead of letting the {@link PathIterator} transform every
+ * single segment.
+ *
+ * Other shapes, e.g. {@link Path2D}, are not handled here: their
+ * coordinates can only be read through the {@link PathIterator}, so copying them
+ * first would only add work.
+ *
+ * The buffer is reused for the next polygon, so an instance must only be used
+ * by one thread at a time.
+ */
+final class PdfBoxGraphics2DBulkPath {
+	/*
+	 * Larger buffers are only used for one polygon, so that a single huge polygon
+	 * does not stay on the heap as long as the graphics lives.
+	 */
+	private static final int MAX_RETAINED_POINTS = 1 << 16;
+
+	private float[] buffer = new float[32];
+	private float[] coords;
+	private int pointCount;
+
+	/**
+	 * @return true if the shape can be loaded with {@link #load(Polygon, AffineTransform)}
+	 */
+	static boolean isSupported(Shape shape) {
+		return shape instanceof Polygon && ((Polygon) shape).npoints > 0;
+	}
+
+	/**
+	 * Load the points of the polygon and transform them.
+	 *
+	 * @param polygon
+	 *            the polygon
+	 * @param tf
+	 *            the transform to apply to the coordinates
+	 */
+	void load(Polygon polygon, AffineTransform tf) {
+		int n = polygon.npoints;
+		if (n * 2 <= buffer.length) {
+			coords = buffer;
+		} else {
+			coords = new float[n * 2];
+			if (n <= MAX_RETAINED_POINTS)
+				buffer = coords;
+		}
+		pointCount = n;
+		transform(tf, polygon.xpoints, polygon.ypoints, coords, n);
+	}
+
+	/**
+	 * Transform the x and y points into the interleaved dst. The loops are kept
+	 * free of calls and branches, so that the JIT can unroll and vectorize them.
+	 */
+	static void transform(AffineTransform tf, int[] xpoints, int[] ypoints, float[] dst, int pointCount) {
+		double m00 = tf.getScaleX();
+		double m01 = tf.getShearX();
+		double m02 = tf.getTranslateX();
+		double m10 = tf.getShearY();
+		double m11 = tf.getScaleY();
+		double m12 = tf.getTranslateY();
+		if (m01 == 0 && m10 == 0) {
+			/*
+			 * Only scale and translate, which is the usual case
+			 */
+			for (int i = 0; i < pointCount; i++) {
+				dst[i * 2] = (float) (m00 * xpoints[i] + m02);
+				dst[i * 2 + 1] = (float) (m11 * ypoints[i] + m12);
+			}
+		} else {
+			for (int i = 0; i < pointCount; i++) {
+				double x = xpoints[i];
+				double y = ypoints[i];
+				dst[i * 2] = (float) (m00 * x + m01 * y + m02);
+				dst[i * 2 + 1] = (float) (m10 * x + m11 * y + m12);
+			}
+		}
+	}
+
+	/**
+	 * An open polygon, as drawn by {@link Graphics#drawPolyline(int[], int[], int)}
+	 */
+	static final class Polyline extends Polygon {
+		Polyline(int[] xpoints, int[] ypoints, int npoints) {
+			super(xpoints, ypoints, npoints);
+		}
+
+		@Override
+		public PathIterator getPathIterator(AffineTransform at) {
+			Path2D.Double path = new Path2D.Double(Path2D.WIND_EVEN_ODD, npoints);
+			if (npoints > 0)
+				path.moveTo(xpoints[0], ypoints[0]);
+			for (int i = 1; i < npoints; i++)
+				path.lineTo(xpoints[i], ypoints[i]);
+			return path.getPathIterator(at);
+		}
+	}
+
+	int getPointCount() {
+		return pointCount;
+	}
+
+	/**
+	 * @return the transformed x/y coordinates of all points, one after the other
+	 */
+	float[] getCoords() {
+		return coords;
+	}
+
+	/**
+	 * @return the length of the buffer kept for the next polygon
+	 */
+	int getRetainedCapacity() {
+		return buffer.length;
+	}
+}
@@ -14,6 +14,7 @@ import java.io.IOException;
 public class PdfBoxGraphics2DCMYKColor extends Color {
 	private final float c, m, y, k;
 	private final PDColorSpace colorSpace;
+	private final PDColor pdColor;
 
 	public PdfBoxGraphics2DCMYKColor(int c, int m, int y, int k, int alpha) {
 		this(c / 255f, m / 255f, y / 255f, k / 255f, alpha);
@@ -27,19 +28,65 @@ public class PdfBoxGraphics2DCMYKColor extends Color {
 		this(c, m, y, k, 255);
 	}
 
+	/*
+	 * Converting to RGB goes through the color management, which is slow. Most
+	 * DeviceCMYK colors are given with 8 bit components, so we cache them by
+	 * their packed components.
+	 */
+	private static final PdfBoxGraphics2DColorCache<Integer> DEVICE_CMYK_TO_RGB = new PdfBoxGraphics2DColorCache<Integer>();
+
 	private static int toRGBValue(float c, float m, float y, float k, int alpha, PDColorSpace colorSpace) {
+		int packedCMYK = -1;
+		if (colorSpace == PDDeviceCMYK.INSTANCE)
+			packedCMYK = pack8Bit(c, m, y, k);
+		if (packedCMYK != -1) {
+			Integer rgb = DEVICE_CMYK_TO_RGB.get(packedCMYK);
+			if (rgb != null)
+				return alpha << 24 | rgb;
+		}
+
+		int rgb = toRGB(c, m, y, k, colorSpace);
+		if (packedCMYK != -1)
+			DEVICE_CMYK_TO_RGB.put(packedCMYK, rgb);
+		return alpha << 24 | rgb;
+	}
+
+	private static int toRGB(float c, float m, float y, float k, PDColorSpace colorSpace) {
 		float[] rgb;
 		try {
 			rgb = colorSpace.toRGB(new float[] { c, m, y, k });
 			int r = ((int) (rgb[0] * 0xFF)) & 0xFF;
 			int g = ((int) (rgb[1] * 0xFF)) & 0xFF;
 			int b = ((int) (rgb[2] * 0xFF)) & 0xFF;
-			return alpha << 24 | r << 16 | g << 8 | b;
+			return r << 16 | g << 8 | b;
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * @return the components packed into an int, or -1 if a component is not
+	 *         exactly an 8 bit value. -1 is also the packed value of full CMYK,
+	 *         which is then just not cached.
+	 */
+	private static int pack8Bit(float c, float m, float y, float k) {
+		int c8 = to8Bit(c), m8 = to8Bit(m), y8 = to8Bit(y), k8 = to8Bit(k);
+		if (c8 < 0 || m8 < 0 || y8 < 0 || k8 < 0)
+			return -1;
+		return c8 << 24 | m8 << 16 | y8 << 8 | k8;
+	}
+
+	/**
+	 * @return the 8 bit value of the component, or -1 if it has no exact 8 bit
+	 *         value
+	 */
+	private static int to8Bit(float component) {
+		int value = Math.round(component * 255);
+		if (value < 0 || value > 255 || value / 255f != component)
+			return -1;
+		return value;
+	}
+
 	public PdfBoxGraphics2DCMYKColor(float c, float m, float y, float k, int alpha) {
 		this(c, m, y, k, alpha, PDDeviceCMYK.INSTANCE);
 	}
@@ -51,6 +98,7 @@ public class PdfBoxGraphics2DCMYKColor extends Color {
 		this.y = y;
 		this.k = k;
 		this.colorSpace = colorSpace;
+		this.pdColor = new PDColor(new float[] { c, m, y, k }, colorSpace);
 	}
 
 	public float getC() {
@@ -69,10 +117,17 @@ public class PdfBoxGraphics2DCMYKColor extends Color {
 		return k;
 	}
 
+	/**
+	 * @return the color space of the CMYK components
+	 */
+	public PDColorSpace getPDColorSpace() {
+		return colorSpace;
+	}
+
 	/**
 	 * @return the PDColor represented by this color object
 	 */
 	public PDColor toPDColor() {
-		return new PDColor(new float[] { getC(), getM(), getY(), getK() }, colorSpace);
+		return pdColor;
 	}
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import java.lang.ref.SoftReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Lazily computes a value per class and caches it. This is a minimal
+ * replacement for java.lang.ClassValue, which is not available in Java 1.6.
+ *
+ * Like ClassValue this does not prevent the unloading of classes, e.g. of a
+ * webapp, when this library is in a shared classloader: The classes are only
+ * weakly referenced, and the values, which may reference the class, only softly.
+ * So a value may be computed again after it was collected.
+ *
+ * This class is thread safe. The value may be computed more than once when
+ * multiple threads ask for the same class at the same time, but all threads
+ * will get the same value.
+ */
+abstract class PdfBoxGraphics2DClassValue<T> {
+	private final Map<Class<?>, SoftReference<T>> values = new WeakHashMap<Class<?>, SoftReference<T>>();
+
+	/**
+	 * Compute the value for the given class. Must not return null.
+	 */
+	protected abstract T computeValue(Class<?> type);
+
+	T get(Class<?> type) {
+		T value = lookup(type);
+		if (value == null) {
+			value = computeValue(type);
+			synchronized (values) {
+				T existingValue = lookup(type);
+				if (existingValue != null)
+					return existingValue;
+				values.put(type, new SoftReference<T>(value));
+			}
+		}
+		return value;
+	}
+
+	private T lookup(Class<?> type) {
+		synchronized (values) {
+			SoftReference<T> reference = values.get(type);
+			return reference == null ? null : reference.get();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small open addressing hash table from a packed int color value to its
+ * mapped value, e.g. a {@link PDColor}. It has a fixed size; when all slots
+ * near a key are taken, the entry in the home slot of the key is replaced.
+ *
+ * This class is thread safe without locking. The entries are immutable and
+ * slots never become empty again, so a lookup can stop at the first empty
+ * slot.
+ */
+final class PdfBoxGraphics2DColorCache<T> {
+	private static final int SIZE = 1024;
+	private static final int MASK = SIZE - 1;
+	private static final int MAX_PROBES = 8;
+
+	private final AtomicReferenceArray<Entry<T>> entries = new AtomicReferenceArray<Entry<T>>(SIZE);
+
+	private static final class Entry<T> {
+		private final int key;
+		private final T value;
+
+		Entry(int key, T value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * @return the cached value or null if the key is not cached
+	 */
+	T get(int key) {
+		int index = indexOf(key);
+		for (int i = 0; i < MAX_PROBES; i++) {
+			Entry<T> entry = entries.get((index + i) & MASK);
+			if (entry == null)
+				return null;
+			if (entry.key == key)
+				return entry.value;
+		}
+		return null;
+	}
+
+	void put(int key, T value) {
+		Entry<T> newEntry = new Entry<T>(key, value);
+		int index = indexOf(key);
+		for (int i = 0; i < MAX_PROBES; i++) {
+			int slot = (index + i) & MASK;
+			if (entries.compareAndSet(slot, null, newEntry))
+				return;
+			Entry<T> entry = entries.get(slot);
+			if (entry != null && entry.key == key)
+				return;
+		}
+		entries.set(index, newEntry);
+	}
+
+	private static int indexOf(int key) {
+		/*
+		 * Colors often only differ in a few bits, so mix all bits into the index
+		 */
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & MASK;
+	}
+}
@@ -22,14 +22,29 @@ import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
 
 import java.awt.*;
 
+/**
+ * Default color mapper. It maps colors to DeviceRGB, and CMYK colors to
+ * DeviceCMYK.
+ *
+ * This class is thread safe, you can share one instance between all
+ * {@link PdfBoxGraphics2D} objects and threads.
+ */
 public class PdfBoxGraphics2DColorMapper implements IPdfBoxGraphics2DColorMapper {
+	private static final PDColor WHITE = new PDColor(new float[] { 1f, 1f, 1f }, PDDeviceRGB.INSTANCE);
+
+	/*
+	 * The same RGB colors are mapped again and again, e.g. once per gradient stop.
+	 * PDColor objects are immutable, so we can hand out the same instance.
+	 */
+	private final PdfBoxGraphics2DColorCache<PDColor> rgbColors = new PdfBoxGraphics2DColorCache<PDColor>();
+
 	@Override
 	public PDColor mapColor(PDPageContentStream contentStream, Color color) {
 		if (color == null)
-			return new PDColor(new float[] { 1f, 1f, 1f }, PDDeviceRGB.INSTANCE);
+			return WHITE;
 
 		// Support for legacy iText 2 CMYK Color Class
-		if (color.getClass().getSimpleName().equals("CMYKColor")) {
+		if (ITEXT_CMYK_COLORS.get(color.getClass())) {
 			float c = PdfBoxGraphics2DPaintApplier.getPropertyValue(color, "getCyan");
 			float m = PdfBoxGraphics2DPaintApplier.getPropertyValue(color, "getMagenta");
 			float y = PdfBoxGraphics2DPaintApplier.getPropertyValue(color, "getYellow");
@@ -42,7 +57,29 @@ public class PdfBoxGraphics2DColorMapper implements IPdfBoxGraphics2DColorMapper
 			return ((PdfBoxGraphics2DCMYKColor) color).toPDColor();
 		}
 
-		float[] components = new float[] { color.getRed() / 255f, color.getGreen() / 255f, color.getBlue() / 255f };
-		return new PDColor(components, PDDeviceRGB.INSTANCE);
+		return mapRGBColor(color);
 	}
+
+	/**
+	 * Map a color which is given by its RGB value only. The alpha is applied
+	 * separately, so it must be ignored here.
+	 */
+	protected PDColor mapRGBColor(Color color) {
+		int rgb = color.getRGB() & 0xFFFFFF;
+		PDColor pdColor = rgbColors.get(rgb);
+		if (pdColor == null) {
+			float[] components = new float[] { color.getRed() / 255f, color.getGreen() / 255f,
+					color.getBlue() / 255f };
+			pdColor = new PDColor(components, PDDeviceRGB.INSTANCE);
+			rgbColors.put(rgb, pdColor);
+		}
+		return pdColor;
+	}
+
+	private static final PdfBoxGraphics2DClassValue<Boolean> ITEXT_CMYK_COLORS = new PdfBoxGraphics2DClassValue<Boolean>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			return type.getSimpleName().equals("CMYKColor");
+		}
+	};
 }
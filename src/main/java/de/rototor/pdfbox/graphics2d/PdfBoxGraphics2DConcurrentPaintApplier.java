@@ -0,0 +1,68 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.graphics.shading.PDShading;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Paint applier which can be shared by all threads, e.g. configure one instance
+ * at startup and set it on every {@link PdfBoxGraphics2D} using
+ * {@link PdfBoxGraphics2D#setPaintApplier(IPdfBoxGraphics2DPaintApplier)}.
+ * <p>
+ * The caches are kept per {@link PDDocument}, so threads drawing into different
+ * documents never block each other. As long as a document is in use its cache
+ * stays warm, even if many graphics objects are created for it. The caches are
+ * dropped when the document is garbage collected.
+ * <p>
+ * Note: You still must not draw into the same document from more than one
+ * thread at the same time, as PDFBox itself is not thread safe. Also configure
+ * the applier, e.g. {@link #setSampledFunctionMinStops(int)}, before you share
+ * it.
+ */
+public class PdfBoxGraphics2DConcurrentPaintApplier extends PdfBoxGraphics2DPaintApplier {
+	private final Map<PDDocument, DocumentCache> documentCaches = new WeakHashMap<PDDocument, DocumentCache>();
+
+	@Override
+	DocumentCache getDocumentCache(PDDocument document) {
+		synchronized (documentCaches) {
+			DocumentCache documentCache = documentCaches.get(document);
+			if (documentCache == null) {
+				documentCache = new DocumentCache();
+				documentCaches.put(document, documentCache);
+			}
+			return documentCache;
+		}
+	}
+
+	@Override
+	public PDShading applyPaint(Paint paint, PDPageContentStream contentStream, AffineTransform tf, IPaintEnv env)
+			throws IOException {
+		/*
+		 * The caches of one document are only used by one thread at a time.
+		 */
+		synchronized (getDocumentCache(env.getDocument())) {
+			return super.applyPaint(paint, contentStream, tf, env);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDICCBased;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes all images using lossy JPEG (DCT) compression. This is much smaller
+ * and faster than the lossless compression for photos, but blurs sharp edges,
+ * so use {@link PdfBoxGraphics2DAdaptiveImageEncoder} if you also draw
+ * graphics like charts or icons.
+ *
+ * Images which can not be stored as JPEG, e.g. images with a 1 bit
+ * transparency or 16 bit images, are encoded lossless. Images are reused like
+ * in {@link PdfBoxGraphics2DLosslessImageEncoder}.
+ */
+public class PdfBoxGraphics2DDCTImageEncoder extends PdfBoxGraphics2DLosslessImageEncoder {
+	private float quality = 0.75f;
+
+	/**
+	 * @param quality
+	 *            the JPEG quality between 0 and 1, default is 0.75.
+	 */
+	@SuppressWarnings("unused")
+	public void setQuality(float quality) {
+		this.quality = quality;
+	}
+
+	@Override
+	protected PDImageXObject encodeBufferedImage(PDDocument document, BufferedImage bi) throws IOException {
+		if (!isJPEGEncodable(bi))
+			return super.encodeBufferedImage(document, bi);
+		return encodeJPEG(document, bi, quality);
+	}
+
+	/**
+	 * @return true if the image can be stored as JPEG without losing more than
+	 *         the lossy compression loses.
+	 */
+	static boolean isJPEGEncodable(BufferedImage bi) {
+		ColorModel colorModel = bi.getColorModel();
+		if (colorModel instanceof IndexColorModel || colorModel.getTransparency() == Transparency.BITMASK)
+			return false;
+		for (int componentSize : colorModel.getComponentSize())
+			if (componentSize != 8)
+				return false;
+		ColorSpace colorSpace = colorModel.getColorSpace();
+		if (colorSpace.getType() == ColorSpace.TYPE_GRAY)
+			return !colorModel.hasAlpha();
+		if (colorSpace.getType() != ColorSpace.TYPE_RGB)
+			return false;
+		/*
+		 * Images with alpha are converted to sRGB, which would lose a wide gamut
+		 * profile.
+		 */
+		return !colorModel.hasAlpha() || !hasProfile(colorSpace);
+	}
+
+	/**
+	 * Encode an image which is {@link #isJPEGEncodable(BufferedImage)}.
+	 */
+	static PDImageXObject encodeJPEG(PDDocument document, BufferedImage bi, float quality) throws IOException {
+		PDImageXObject imageXObject = JPEGFactory.createFromImage(document, bi, quality);
+
+		/*
+		 * The JPEG contains the samples as they are, so we must tag the profile of
+		 * the image. PdfBoxGraphics2DLosslessImageEncoder then makes sure every
+		 * profile is only embedded once.
+		 */
+		ColorSpace colorSpace = bi.getColorModel().getColorSpace();
+		if (colorSpace.getType() == ColorSpace.TYPE_RGB && hasProfile(colorSpace)) {
+			PDICCBased pdProfile = new PDICCBased(document);
+			OutputStream outputStream = pdProfile.getPDStream().createOutputStream(COSName.FLATE_DECODE);
+			outputStream.write(((ICC_ColorSpace) colorSpace).getProfile().getData());
+			outputStream.close();
+			pdProfile.getPDStream().getCOSObject().setInt(COSName.N, colorSpace.getNumComponents());
+			pdProfile.getPDStream().getCOSObject().setItem(COSName.ALTERNATE, COSName.DEVICERGB);
+			imageXObject.setColorSpace(pdProfile);
+		}
+		return imageXObject;
+	}
+
+	/**
+	 * @return true if the color space has an ICC profile which is not sRGB
+	 */
+	private static boolean hasProfile(ColorSpace colorSpace) {
+		return colorSpace instanceof ICC_ColorSpace
+				&& ((ICC_ColorSpace) colorSpace).getProfile() != ICC_Profile.getInstance(ColorSpace.CS_sRGB);
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ImageObserver;
+import java.awt.image.ImageProducer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+
+/**
+ * An image which is still in its encoded form, e.g. a JPEG or PNG file. When
+ * you draw it on a {@link PdfBoxGraphics2D}, JPEG images are embedded as they
+ * are, without decoding and compressing them again. PNG images are embedded as
+ * they are if the PDF can represent them directly, i.e. if they are not
+ * interlaced, have no alpha channel or transparent color and no color profile.
+ * All other images are decoded and encoded like any other image.
+ *
+ * Java2D can only draw its own image classes, so to draw this image on any
+ * other Graphics2D use {@link #decode()}.
+ *
+ * <pre>
+ * pdfBoxGraphics2D.drawImage(PdfBoxGraphics2DEncodedImage.fromFile(new File("photo.jpg")), x, y, null);
+ * </pre>
+ */
+public class PdfBoxGraphics2DEncodedImage extends Image {
+	private final byte[] data;
+	private final String formatName;
+	private final int width;
+	private final int height;
+	private SoftReference<BufferedImage> decodedImage;
+
+	private PdfBoxGraphics2DEncodedImage(byte[] data) throws IOException {
+		this.data = data;
+		ImageInputStream imageInputStream = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
+			if (!readers.hasNext())
+				throw new IOException("Unsupported image format");
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(imageInputStream, true, true);
+				formatName = reader.getFormatName().toLowerCase();
+				width = reader.getWidth(0);
+				height = reader.getHeight(0);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			imageInputStream.close();
+		}
+	}
+
+	/**
+	 * @param data
+	 *            the content of an image file. The array must not be modified
+	 *            afterwards.
+	 */
+	public static PdfBoxGraphics2DEncodedImage fromBytes(byte[] data) throws IOException {
+		return new PdfBoxGraphics2DEncodedImage(data);
+	}
+
+	/**
+	 * Read the image file from the stream. The stream is not closed.
+	 */
+	public static PdfBoxGraphics2DEncodedImage fromStream(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream bout = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = inputStream.read(buffer)) > 0)
+			bout.write(buffer, 0, read);
+		return new PdfBoxGraphics2DEncodedImage(bout.toByteArray());
+	}
+
+	public static PdfBoxGraphics2DEncodedImage fromFile(File file) throws IOException {
+		InputStream inputStream = new FileInputStream(file);
+		try {
+			return fromStream(inputStream);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	byte[] getData() {
+		return data;
+	}
+
+	boolean isJPEG() {
+		return formatName.equals("jpeg") || formatName.equals("jpg");
+	}
+
+	boolean isPNG() {
+		return formatName.equals("png");
+	}
+
+	/**
+	 * @return the decoded image. It is kept as long as there is enough memory.
+	 */
+	public synchronized BufferedImage decode() throws IOException {
+		BufferedImage image = decodedImage == null ? null : decodedImage.get();
+		if (image == null) {
+			image = ImageIO.read(new ByteArrayInputStream(data));
+			if (image == null)
+				throw new IOException("Could not decode " + formatName + " image");
+			decodedImage = new SoftReference<BufferedImage>(image);
+		}
+		return image;
+	}
+
+	@Override
+	public int getWidth(ImageObserver observer) {
+		return width;
+	}
+
+	@Override
+	public int getHeight(ImageObserver observer) {
+		return height;
+	}
+
+	@Override
+	public ImageProducer getSource() {
+		try {
+			return decode().getSource();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public Graphics getGraphics() {
+		throw new UnsupportedOperationException("Can not draw on an encoded image");
+	}
+
+	@Override
+	public Object getProperty(String name, ImageObserver observer) {
+		return UndefinedProperty;
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.color.PDICCBased;
+import org.apache.pdfbox.pdmodel.graphics.color.PDIndexed;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Embeds the compressed data of a {@link PdfBoxGraphics2DEncodedImage} without
+ * decoding it.
+ */
+final class PdfBoxGraphics2DEncodedImageFactory {
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	private static final byte[] ICC_PROFILE_ID = { 'I', 'C', 'C', '_', 'P', 'R', 'O', 'F', 'I', 'L', 'E', 0 };
+	private static final int PNG_GRAY = 0;
+	private static final int PNG_RGB = 2;
+	private static final int PNG_PALETTE = 3;
+
+	private PdfBoxGraphics2DEncodedImageFactory() {
+	}
+
+	/**
+	 * @return the image, or null if it must be decoded to be embedded.
+	 */
+	static PDImageXObject createFromEncodedImage(PDDocument document, PdfBoxGraphics2DEncodedImage image)
+			throws IOException {
+		if (image.isJPEG())
+			return createFromJPEG(document, image.getData());
+		if (image.isPNG())
+			return createFromPNG(document, image.getData());
+		return null;
+	}
+
+	private static PDImageXObject createFromJPEG(PDDocument document, byte[] data) throws IOException {
+		PDImageXObject imageXObject = JPEGFactory.createFromByteArray(document, data);
+
+		/*
+		 * JPEGFactory ignores the color profile of the JPEG, but the samples are only
+		 * correct with it.
+		 */
+		byte[] profile = readJPEGProfile(data);
+		if (profile != null) {
+			/*
+			 * PDImageXObject.getColorSpace() would cache the device color space
+			 */
+			PDColorSpace deviceColorSpace = PDColorSpace
+					.create(imageXObject.getCOSObject().getDictionaryObject(COSName.COLORSPACE));
+			PDICCBased pdProfile = new PDICCBased(document);
+			OutputStream outputStream = pdProfile.getPDStream().createOutputStream(COSName.FLATE_DECODE);
+			outputStream.write(profile);
+			outputStream.close();
+			pdProfile.getPDStream().getCOSObject().setInt(COSName.N, deviceColorSpace.getNumberOfComponents());
+			pdProfile.getPDStream().getCOSObject().setItem(COSName.ALTERNATE, deviceColorSpace.getCOSObject());
+			imageXObject.setColorSpace(pdProfile);
+		}
+		return imageXObject;
+	}
+
+	/**
+	 * @return the ICC profile from the APP2 markers of the JPEG, or null if it has
+	 *         none.
+	 */
+	private static byte[] readJPEGProfile(byte[] data) {
+		byte[][] chunks = null;
+		int pos = 2;
+		while (pos + 4 <= data.length && (data[pos] & 0xFF) == 0xFF) {
+			int marker = data[pos + 1] & 0xFF;
+			/*
+			 * The image data follows the start of scan marker, there are no more
+			 * profile chunks.
+			 */
+			if (marker == 0xDA)
+				break;
+			int length = (data[pos + 2] & 0xFF) << 8 | (data[pos + 3] & 0xFF);
+			int segmentStart = pos + 4;
+			int segmentEnd = pos + 2 + length;
+			if (length < 2 || segmentEnd > data.length)
+				return null;
+			if (marker == 0xE2 && segmentEnd - segmentStart > ICC_PROFILE_ID.length + 2 && Arrays.equals(
+					Arrays.copyOfRange(data, segmentStart, segmentStart + ICC_PROFILE_ID.length), ICC_PROFILE_ID)) {
+				int sequenceNumber = data[segmentStart + ICC_PROFILE_ID.length] & 0xFF;
+				int chunkCount = data[segmentStart + ICC_PROFILE_ID.length + 1] & 0xFF;
+				if (chunks == null)
+					chunks = new byte[chunkCount][];
+				if (sequenceNumber < 1 || sequenceNumber > chunks.length)
+					return null;
+				chunks[sequenceNumber - 1] = Arrays.copyOfRange(data, segmentStart + ICC_PROFILE_ID.length + 2,
+						segmentEnd);
+			}
+			pos = segmentEnd;
+		}
+		if (chunks == null)
+			return null;
+		ByteArrayOutputStream profile = new ByteArrayOutputStream();
+		for (byte[] chunk : chunks) {
+			if (chunk == null)
+				return null;
+			profile.write(chunk, 0, chunk.length);
+		}
+		return profile.toByteArray();
+	}
+
+	/**
+	 * The compressed image data of a PNG file is a zlib stream of rows with PNG
+	 * predictors, which is exactly what a FlateDecode stream with /Predictor 15
+	 * contains. So we only need to concatenate the IDAT chunks, as long as the
+	 * pixel format is something the PDF can express directly.
+	 */
+	private static PDImageXObject createFromPNG(PDDocument document, byte[] data) throws IOException {
+		if (data.length < PNG_SIGNATURE.length
+				|| !Arrays.equals(Arrays.copyOf(data, PNG_SIGNATURE.length), PNG_SIGNATURE))
+			return null;
+
+		int width = 0;
+		int height = 0;
+		int bitDepth = 0;
+		int colorType = -1;
+		byte[] palette = null;
+		ByteArrayOutputStream imageData = new ByteArrayOutputStream(data.length);
+		int pos = PNG_SIGNATURE.length;
+		while (pos + 8 <= data.length) {
+			int length = readInt(data, pos);
+			String type = new String(data, pos + 4, 4, "US-ASCII");
+			int chunkStart = pos + 8;
+			if (length < 0 || chunkStart + length > data.length)
+				return null;
+			if (type.equals("IHDR")) {
+				if (length < 13)
+					return null;
+				width = readInt(data, chunkStart);
+				height = readInt(data, chunkStart + 4);
+				bitDepth = data[chunkStart + 8];
+				colorType = data[chunkStart + 9];
+				int interlace = data[chunkStart + 12];
+				if (interlace != 0)
+					return null;
+			} else if (type.equals("PLTE")) {
+				palette = Arrays.copyOfRange(data, chunkStart, chunkStart + length);
+			} else if (type.equals("IDAT")) {
+				imageData.write(data, chunkStart, length);
+			} else if (type.equals("tRNS") || type.equals("iCCP")) {
+				/*
+				 * Transparent colors would need a mask and the color profile a color space
+				 * conversion. Let the decoder handle this.
+				 */
+				return null;
+			} else if (type.equals("IEND")) {
+				break;
+			}
+			/*
+			 * Skip the chunk data and its CRC
+			 */
+			pos = chunkStart + length + 4;
+		}
+
+		PDColorSpace colorSpace;
+		int colors;
+		if (colorType == PNG_GRAY) {
+			colorSpace = PDDeviceGray.INSTANCE;
+			colors = 1;
+		} else if (colorType == PNG_RGB) {
+			colorSpace = PDDeviceRGB.INSTANCE;
+			colors = 3;
+		} else if (colorType == PNG_PALETTE && palette != null) {
+			COSArray indexedArray = new COSArray();
+			indexedArray.add(COSName.INDEXED);
+			indexedArray.add(COSName.DEVICERGB);
+			indexedArray.add(COSInteger.get(palette.length / 3 - 1));
+			indexedArray.add(new COSString(palette));
+			colorSpace = new PDIndexed(indexedArray);
+			colors = 1;
+		} else {
+			/*
+			 * Images with alpha channel must be split into the image and the soft mask
+			 */
+			return null;
+		}
+		if (width <= 0 || height <= 0 || imageData.size() == 0)
+			return null;
+
+		PDImageXObject imageXObject = new PDImageXObject(document, new ByteArrayInputStream(imageData.toByteArray()),
+				COSName.FLATE_DECODE, width, height, bitDepth, colorSpace);
+		COSDictionary decodeParms = new COSDictionary();
+		decodeParms.setItem(COSName.BITS_PER_COMPONENT, COSInteger.get(bitDepth));
+		decodeParms.setItem(COSName.PREDICTOR, COSInteger.get(15));
+		decodeParms.setItem(COSName.COLUMNS, COSInteger.get(width));
+		decodeParms.setItem(COSName.COLORS, COSInteger.get(colors));
+		imageXObject.getCOSObject().setItem(COSName.DECODE_PARMS, decodeParms);
+		return imageXObject;
+	}
+
+	private static int readInt(byte[] data, int pos) {
+		return (data[pos] & 0xFF) << 24 | (data[pos + 1] & 0xFF) << 16 | (data[pos + 2] & 0xFF) << 8
+				| (data[pos + 3] & 0xFF);
+	}
+}
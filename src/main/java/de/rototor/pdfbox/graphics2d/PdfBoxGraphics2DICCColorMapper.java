@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceCMYK;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+
+/**
+ * Color mapper which converts RGB colors to CMYK using an ICC profile, e.g. the
+ * profile of the printing press. The colors are written as DeviceCMYK, so you
+ * should also set the profile as output intent of the document.
+ *
+ * Converting every color through the Java color management is slow. So the
+ * profile is only used once to build a lookup table on a 16x16x16 RGB grid; the
+ * colors are then interpolated tetrahedrally between the grid points.
+ *
+ * CMYK colors are passed through as they are. This class is thread safe, you
+ * can share one instance between all {@link PdfBoxGraphics2D} objects and
+ * threads.
+ */
+public class PdfBoxGraphics2DICCColorMapper extends PdfBoxGraphics2DColorMapper {
+	private static final int GRID_POINTS = 16;
+	private static final int GRID_STEP = 255 / (GRID_POINTS - 1);
+	private static final int CHANNELS = 4;
+
+	/*
+	 * CMYK values of all grid points, with red as the slowest and blue as the
+	 * fastest changing axis.
+	 */
+	private final float[] lut;
+	private final PdfBoxGraphics2DColorCache<PDColor> cmykColors = new PdfBoxGraphics2DColorCache<PDColor>();
+
+	/**
+	 * @param cmykProfile
+	 *            the ICC profile of the CMYK output
+	 */
+	public PdfBoxGraphics2DICCColorMapper(ICC_Profile cmykProfile) {
+		if (cmykProfile.getColorSpaceType() != ColorSpace.TYPE_CMYK)
+			throw new IllegalArgumentException("Profile is not a CMYK profile");
+		lut = buildLookupTable(new ICC_ColorSpace(cmykProfile));
+	}
+
+	private static float[] buildLookupTable(ICC_ColorSpace cmykColorSpace) {
+		/*
+		 * Convert all grid points in one go, that is much faster than converting
+		 * them one by one.
+		 */
+		int pointCount = GRID_POINTS * GRID_POINTS * GRID_POINTS;
+		BufferedImage rgbImage = new BufferedImage(pointCount, 1, BufferedImage.TYPE_INT_RGB);
+		int x = 0;
+		for (int r = 0; r < GRID_POINTS; r++)
+			for (int g = 0; g < GRID_POINTS; g++)
+				for (int b = 0; b < GRID_POINTS; b++)
+					rgbImage.setRGB(x++, 0, (r * GRID_STEP) << 16 | (g * GRID_STEP) << 8 | (b * GRID_STEP));
+
+		ComponentColorModel cmykColorModel = new ComponentColorModel(cmykColorSpace, false, false,
+				Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+		WritableRaster cmykRaster = cmykColorModel.createCompatibleWritableRaster(pointCount, 1);
+		BufferedImage cmykImage = new BufferedImage(cmykColorModel, cmykRaster, false, null);
+		new ColorConvertOp(null).filter(rgbImage, cmykImage);
+
+		int[] samples = cmykRaster.getPixels(0, 0, pointCount, 1, (int[]) null);
+		float[] lut = new float[samples.length];
+		for (int i = 0; i < samples.length; i++)
+			lut[i] = samples[i] / 65535f;
+		return lut;
+	}
+
+	@Override
+	protected PDColor mapRGBColor(Color color) {
+		int rgb = color.getRGB() & 0xFFFFFF;
+		PDColor cmykColor = cmykColors.get(rgb);
+		if (cmykColor == null) {
+			cmykColor = new PDColor(interpolate(color.getRed(), color.getGreen(), color.getBlue()),
+					PDDeviceCMYK.INSTANCE);
+			cmykColors.put(rgb, cmykColor);
+		}
+		return cmykColor;
+	}
+
+	/**
+	 * Tetrahedral interpolation in the lookup table. The grid cell is split into
+	 * six tetrahedra along its gray diagonal, which keeps neutral colors neutral.
+	 */
+	float[] interpolate(int red, int green, int blue) {
+		int r = Math.min(red / GRID_STEP, GRID_POINTS - 2);
+		int g = Math.min(green / GRID_STEP, GRID_POINTS - 2);
+		int b = Math.min(blue / GRID_STEP, GRID_POINTS - 2);
+		float fr = (red - r * GRID_STEP) / (float) GRID_STEP;
+		float fg = (green - g * GRID_STEP) / (float) GRID_STEP;
+		float fb = (blue - b * GRID_STEP) / (float) GRID_STEP;
+
+		int strideR = GRID_POINTS * GRID_POINTS * CHANNELS;
+		int strideG = GRID_POINTS * CHANNELS;
+		int strideB = CHANNELS;
+		int c000 = r * strideR + g * strideG + b * strideB;
+		int c111 = c000 + strideR + strideG + strideB;
+
+		/*
+		 * The corners on the path from c000 to c111 through the tetrahedron and the
+		 * weights of the steps along this path.
+		 */
+		int first, second;
+		float f1, f2, f3;
+		if (fr >= fg) {
+			if (fg >= fb) {
+				first = c000 + strideR;
+				second = first + strideG;
+				f1 = fr;
+				f2 = fg;
+				f3 = fb;
+			} else if (fr >= fb) {
+				first = c000 + strideR;
+				second = first + strideB;
+				f1 = fr;
+				f2 = fb;
+				f3 = fg;
+			} else {
+				first = c000 + strideB;
+				second = first + strideR;
+				f1 = fb;
+				f2 = fr;
+				f3 = fg;
+			}
+		} else {
+			if (fb > fg) {
+				first = c000 + strideB;
+				second = first + strideG;
+				f1 = fb;
+				f2 = fg;
+				f3 = fr;
+			} else if (fb > fr) {
+				first = c000 + strideG;
+				second = first + strideB;
+				f1 = fg;
+				f2 = fb;
+				f3 = fr;
+			} else {
+				first = c000 + strideG;
+				second = first + strideR;
+				f1 = fg;
+				f2 = fr;
+				f3 = fb;
+			}
+		}
+
+		float[] result = new float[CHANNELS];
+		for (int i = 0; i < CHANNELS; i++) {
+			float v = lut[c000 + i] + f1 * (lut[first + i] - lut[c000 + i])
+					+ f2 * (lut[second + i] - lut[first + i]) + f3 * (lut[c111 + i] - lut[second + i]);
+			result[i] = Math.max(0f, Math.min(1f, v));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Scales images down before they are encoded. The scaled images are kept as
+ * long as the source image lives, so that drawing the same image at the same
+ * size again gives the same image object, which the image encoder can reuse.
+ * {@link PdfBoxGraphics2DLosslessImageEncoder} keeps one instance per document,
+ * so this also works across pages.
+ *
+ * Objects of this class are not thread safe.
+ */
+final class PdfBoxGraphics2DImageDownsampler {
+	private final Map<Image, Map<SizeKey, BufferedImage>> downsampledImages = new WeakHashMap<Image, Map<SizeKey, BufferedImage>>();
+
+	private static final class SizeKey {
+		private final int width;
+		private final int height;
+		private final Object interpolation;
+
+		SizeKey(int width, int height, Object interpolation) {
+			this.width = width;
+			this.height = height;
+			this.interpolation = interpolation;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof SizeKey))
+				return false;
+			SizeKey other = (SizeKey) o;
+			return width == other.width && height == other.height && interpolation == other.interpolation;
+		}
+
+		@Override
+		public int hashCode() {
+			return (width * 31 + height) * 31 + interpolation.hashCode();
+		}
+	}
+
+	/**
+	 * @param interpolation
+	 *            one of the RenderingHints.VALUE_INTERPOLATION_* values
+	 * @return the image scaled to the given size
+	 */
+	BufferedImage downsample(Image image, int width, int height, Object interpolation) {
+		Map<SizeKey, BufferedImage> sizes = downsampledImages.get(image);
+		if (sizes == null) {
+			sizes = new HashMap<SizeKey, BufferedImage>();
+			downsampledImages.put(image, sizes);
+		}
+		SizeKey key = new SizeKey(width, height, interpolation);
+		BufferedImage downsampled = sizes.get(key);
+		if (downsampled == null) {
+			downsampled = resample(image, width, height, interpolation);
+			sizes.put(key, downsampled);
+		}
+		return downsampled;
+	}
+
+	private static BufferedImage resample(Image image, int width, int height, Object interpolation) {
+		if (interpolation == RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR)
+			return drawScaled(image, width, height, interpolation);
+
+		/*
+		 * Bilinear and bicubic interpolation only look at the nearest source pixels.
+		 * When scaling down by more than a factor of two most source pixels would be
+		 * skipped, so we halve the image step by step.
+		 */
+		Image current = image;
+		int currentWidth = image.getWidth(null);
+		int currentHeight = image.getHeight(null);
+		BufferedImage result;
+		do {
+			currentWidth = Math.max(width, currentWidth / 2);
+			currentHeight = Math.max(height, currentHeight / 2);
+			result = drawScaled(current, currentWidth, currentHeight, interpolation);
+			current = result;
+		} while (currentWidth != width || currentHeight != height);
+		return result;
+	}
+
+	private static BufferedImage drawScaled(Image image, int width, int height, Object interpolation) {
+		BufferedImage target = createCompatibleImage(image, width, height);
+		Graphics2D g = target.createGraphics();
+		try {
+			g.setComposite(AlphaComposite.Src);
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			if (!g.drawImage(image, 0, 0, width, height, null))
+				throw new IllegalStateException("Not fully loaded images are not supported.");
+		} finally {
+			g.dispose();
+		}
+		return target;
+	}
+
+	/**
+	 * Keep the type or color model of the image, so that the color profile stays
+	 * the same. Java2D scales custom color models through sRGB, so colors outside
+	 * of sRGB are clipped, but the image is still tagged correctly. Indexed
+	 * images can't be used, as drawing into them would dither the interpolated
+	 * colors.
+	 */
+	private static BufferedImage createCompatibleImage(Image image, int width, int height) {
+		if (image instanceof BufferedImage) {
+			BufferedImage bi = (BufferedImage) image;
+			if (bi.getType() != BufferedImage.TYPE_CUSTOM && bi.getType() != BufferedImage.TYPE_BYTE_BINARY
+					&& bi.getType() != BufferedImage.TYPE_BYTE_INDEXED)
+				return new BufferedImage(width, height, bi.getType());
+			ColorModel colorModel = bi.getColorModel();
+			if (!(colorModel instanceof IndexColorModel))
+				return new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(width, height),
+						colorModel.isAlphaPremultiplied(), null);
+			if (!colorModel.hasAlpha())
+				return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		}
+		return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+	}
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.filter.Filter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDIndexed;
+import org.apache.pdfbox.pdmodel.graphics.image.CCITTFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes images with at most 256 colors, like charts, diagrams and
+ * screenshots, with an /Indexed color space and 1, 2, 4 or 8 bits per pixel.
+ * Pure black and white images are encoded as 1 bit DeviceGray, optionally
+ * using CCITT group 4 compression.
+ *
+ * The image is read twice, first to collect its colors and then to write the
+ * indexed rows directly into the compressed stream.
+ */
+final class PdfBoxGraphics2DIndexedImageFactory {
+	private static final int MAX_COLORS = 256;
+	private static final int BLACK = 0x000000;
+	private static final int WHITE = 0xFFFFFF;
+
+	private PdfBoxGraphics2DIndexedImageFactory() {
+	}
+
+	/**
+	 * @param useCCITT
+	 *            true to compress black and white images using CCITT group 4
+	 *            instead of Flate
+	 * @return the encoded image, or null if the image has more than 256 colors or
+	 *         is not an sRGB image with at most 8 bits per component.
+	 */
+	static PDImageXObject createFromImage(PDDocument document, BufferedImage image, boolean useCCITT)
+			throws IOException {
+		if (!isIndexable(image))
+			return null;
+		ColorTable colorTable = collectColors(image);
+		if (colorTable == null)
+			return null;
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		boolean hasAlpha = image.getColorModel().hasAlpha();
+		int colorCount = colorTable.size();
+		if (!hasAlpha && colorTable.isBlackAndWhite())
+			return createBlackAndWhite(document, image, colorTable, useCCITT);
+
+		int bitsPerComponent = colorCount <= 2 ? 1 : colorCount <= 4 ? 2 : colorCount <= 16 ? 4 : 8;
+		byte[] lookup = new byte[colorCount * 3];
+		for (int i = 0; i < colorCount; i++) {
+			int rgb = colorTable.colorAt(i);
+			lookup[i * 3] = (byte) (rgb >> 16);
+			lookup[i * 3 + 1] = (byte) (rgb >> 8);
+			lookup[i * 3 + 2] = (byte) rgb;
+		}
+		COSArray indexedArray = new COSArray();
+		indexedArray.add(COSName.INDEXED);
+		indexedArray.add(COSName.DEVICERGB);
+		indexedArray.add(COSInteger.get(colorCount - 1));
+		indexedArray.add(new COSString(lookup));
+
+		/*
+		 * The rows are written as soon as they are indexed, so we never need a copy
+		 * of the whole image.
+		 */
+		PDImageXObject imageXObject = createFlateImage(document, width, height, bitsPerComponent,
+				new PDIndexed(indexedArray));
+		PDImageXObject mask = hasAlpha ? createFlateImage(document, width, height, 8, PDDeviceGray.INSTANCE) : null;
+		OutputStream imageOut = openFlateStream(imageXObject);
+		OutputStream maskOut = null;
+		try {
+			if (hasAlpha)
+				maskOut = openFlateStream(mask);
+			int[] row = new int[width];
+			byte[] indexRow = new byte[width];
+			byte[] alphaRow = hasAlpha ? new byte[width] : null;
+			byte[] packedRow = new byte[packedRowLength(width, bitsPerComponent)];
+			for (int y = 0; y < height; y++) {
+				image.getRGB(0, y, width, 1, row, 0, width);
+				indexRow(row, colorTable, hasAlpha, indexRow, alphaRow);
+				imageOut.write(pack(indexRow, bitsPerComponent, packedRow));
+				if (hasAlpha)
+					maskOut.write(alphaRow);
+			}
+		} finally {
+			imageOut.close();
+			if (maskOut != null)
+				maskOut.close();
+		}
+		if (hasAlpha)
+			imageXObject.getCOSObject().setItem(COSName.SMASK, mask);
+		return imageXObject;
+	}
+
+	private static boolean isIndexable(BufferedImage image) {
+		ColorModel colorModel = image.getColorModel();
+		if (colorModel instanceof IndexColorModel)
+			return true;
+		for (int componentSize : colorModel.getComponentSize())
+			if (componentSize > 8)
+				return false;
+		/*
+		 * getRGB() would convert other color spaces to sRGB and lose their profile.
+		 * Gray images are already small as DeviceGray.
+		 */
+		return colorModel.getColorSpace().isCS_sRGB();
+	}
+
+	/**
+	 * @return the colors of all visible pixels, or null if there are more than
+	 *         256.
+	 */
+	private static ColorTable collectColors(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		boolean hasAlpha = image.getColorModel().hasAlpha();
+		ColorTable colorTable = new ColorTable();
+
+		/*
+		 * Neighbouring pixels usually have the same color, so we remember the last
+		 * lookup.
+		 */
+		int lastRGB = -1;
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0; x < width; x++) {
+				int argb = row[x];
+				/*
+				 * The color of invisible pixels does not matter, so they should not fill up
+				 * the color table.
+				 */
+				if (hasAlpha && argb >>> 24 == 0 && colorTable.size() > 0)
+					continue;
+				int rgb = argb & 0xFFFFFF;
+				if (rgb != lastRGB) {
+					if (colorTable.indexOf(rgb) < 0)
+						return null;
+					lastRGB = rgb;
+				}
+			}
+		}
+		return colorTable;
+	}
+
+	/**
+	 * Map one row of pixels to their color table indices. All visible colors must
+	 * already be in the table.
+	 */
+	private static void indexRow(int[] row, ColorTable colorTable, boolean hasAlpha, byte[] indexRow,
+			byte[] alphaRow) {
+		int lastRGB = -1;
+		int lastIndex = 0;
+		for (int x = 0; x < row.length; x++) {
+			int argb = row[x];
+			if (hasAlpha) {
+				int alpha = argb >>> 24;
+				alphaRow[x] = (byte) alpha;
+				if (alpha == 0) {
+					indexRow[x] = (byte) lastIndex;
+					continue;
+				}
+			}
+			int rgb = argb & 0xFFFFFF;
+			if (rgb != lastRGB) {
+				lastIndex = colorTable.indexOf(rgb);
+				lastRGB = rgb;
+			}
+			indexRow[x] = (byte) lastIndex;
+		}
+	}
+
+	private static PDImageXObject createBlackAndWhite(PDDocument document, BufferedImage image,
+			ColorTable colorTable, boolean useCCITT) throws IOException {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		/*
+		 * In DeviceGray 0 is black and 1 is white
+		 */
+		boolean invert = colorTable.colorAt(0) != BLACK;
+		int[] row = new int[width];
+		byte[] indexRow = new byte[width];
+		byte[] packedRow = new byte[packedRowLength(width, 1)];
+
+		if (useCCITT) {
+			/*
+			 * CCITTFactory needs the whole bitmap, which is only one bit per pixel.
+			 */
+			byte[] bits = new byte[packedRow.length * height];
+			for (int y = 0; y < height; y++) {
+				readBlackAndWhiteRow(image, y, colorTable, invert, row, indexRow);
+				System.arraycopy(pack(indexRow, 1, packedRow), 0, bits, y * packedRow.length, packedRow.length);
+			}
+			IndexColorModel blackAndWhite = new IndexColorModel(1, 2, new byte[] { 0, (byte) 0xFF },
+					new byte[] { 0, (byte) 0xFF }, new byte[] { 0, (byte) 0xFF });
+			WritableRaster raster = Raster.createPackedRaster(new DataBufferByte(bits, bits.length), width, height, 1,
+					null);
+			return CCITTFactory.createFromImage(document, new BufferedImage(blackAndWhite, raster, false, null));
+		}
+
+		PDImageXObject imageXObject = createFlateImage(document, width, height, 1, PDDeviceGray.INSTANCE);
+		OutputStream out = openFlateStream(imageXObject);
+		try {
+			for (int y = 0; y < height; y++) {
+				readBlackAndWhiteRow(image, y, colorTable, invert, row, indexRow);
+				out.write(pack(indexRow, 1, packedRow));
+			}
+		} finally {
+			out.close();
+		}
+		return imageXObject;
+	}
+
+	private static void readBlackAndWhiteRow(BufferedImage image, int y, ColorTable colorTable, boolean invert,
+			int[] row, byte[] indexRow) {
+		image.getRGB(0, y, row.length, 1, row, 0, row.length);
+		indexRow(row, colorTable, false, indexRow, null);
+		if (invert)
+			for (int x = 0; x < indexRow.length; x++)
+				indexRow[x] ^= 1;
+	}
+
+	private static int packedRowLength(int width, int bitsPerComponent) {
+		int pixelsPerByte = 8 / bitsPerComponent;
+		return (width + pixelsPerByte - 1) / pixelsPerByte;
+	}
+
+	/**
+	 * Pack a row of 8 bit indices into the given bit depth.
+	 *
+	 * @return the packed row, which is the index row itself for 8 bits
+	 */
+	private static byte[] pack(byte[] indexRow, int bitsPerComponent, byte[] packedRow) {
+		if (bitsPerComponent == 8)
+			return indexRow;
+		int pixelsPerByte = 8 / bitsPerComponent;
+		Arrays.fill(packedRow, (byte) 0);
+		for (int x = 0; x < indexRow.length; x++) {
+			int shift = 8 - bitsPerComponent * (x % pixelsPerByte + 1);
+			packedRow[x / pixelsPerByte] |= (indexRow[x] & 0xFF) << shift;
+		}
+		return packedRow;
+	}
+
+	private static PDImageXObject createFlateImage(PDDocument document, int width, int height,
+			int bitsPerComponent, PDColorSpace colorSpace) throws IOException {
+		PDImageXObject imageXObject = new PDImageXObject(new PDStream(document), null);
+		imageXObject.getCOSObject().setItem(COSName.FILTER, COSName.FLATE_DECODE);
+		imageXObject.setWidth(width);
+		imageXObject.setHeight(height);
+		imageXObject.setBitsPerComponent(bitsPerComponent);
+		imageXObject.setColorSpace(colorSpace);
+		return imageXObject;
+	}
+
+	/**
+	 * @return the stream to write the uncompressed image data to. Closing it also
+	 *         releases the deflater.
+	 */
+	private static OutputStream openFlateStream(PDImageXObject imageXObject) throws IOException {
+		final Deflater deflater = new Deflater(Filter.getCompressionLevel());
+		return new DeflaterOutputStream(imageXObject.getCOSObject().createRawOutputStream(), deflater, 32768) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Open addressing hash table from the RGB value to its index in the color
+	 * table.
+	 */
+	private static final class ColorTable {
+		private static final int SLOTS = MAX_COLORS * 2;
+		private final int[] keys = new int[SLOTS];
+		private final short[] values = new short[SLOTS];
+		private final int[] colors = new int[MAX_COLORS];
+		private int size;
+
+		ColorTable() {
+			Arrays.fill(keys, -1);
+		}
+
+		/**
+		 * @return the index of the color, which is added if it is new. -1 if the
+		 *         table is full.
+		 */
+		int indexOf(int rgb) {
+			int slot = (rgb * 0x9E3779B9 >>> 23) & (SLOTS - 1);
+			while (keys[slot] != -1) {
+				if (keys[slot] == rgb)
+					return values[slot];
+				slot = (slot + 1) & (SLOTS - 1);
+			}
+			if (size == MAX_COLORS)
+				return -1;
+			keys[slot] = rgb;
+			values[slot] = (short) size;
+			colors[size] = rgb;
+			return size++;
+		}
+
+		int size() {
+			return size;
+		}
+
+		int colorAt(int index) {
+			return colors[index];
+		}
+
+		boolean isBlackAndWhite() {
+			for (int i = 0; i < size; i++)
+				if (colors[i] != BLACK && colors[i] != WHITE)
+					return false;
+			return true;
+		}
+	}
+}
@@ -20,13 +20,38 @@ import java.awt.color.ColorSpace;
 import java.awt.color.ICC_ColorSpace;
 import java.awt.color.ICC_Profile;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.ref.SoftReference;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDStream;
 import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
 import org.apache.pdfbox.pdmodel.graphics.color.PDICCBased;
 import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
@@ -35,81 +60,596 @@ import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 /**
  * Encodes all images using lossless compression. Tries to reuse images as much
  * as possible. You can share an instance of this class with multiple
- * PdfBoxGraphics2D objects.
+ * PdfBoxGraphics2D objects, as long as they are used by one thread at a time.
+ *
+ * 8 bit sRGB and gray images are written row by row into the compressed image
+ * stream, so even huge images need no additional copy on the heap. To also keep
+ * the compressed data off the heap, create the PDDocument with
+ * {@link org.apache.pdfbox.io.MemoryUsageSetting#setupTempFileOnly()}.
  */
 public class PdfBoxGraphics2DLosslessImageEncoder implements IPdfBoxGraphics2DImageEncoder {
 	private Map<ImageSoftReference, SoftReference<PDImageXObject>> imageMap = new HashMap<ImageSoftReference, SoftReference<PDImageXObject>>();
 	private Map<ProfileSoftReference, SoftReference<PDColorSpace>> profileMap = new HashMap<ProfileSoftReference, SoftReference<PDColorSpace>>();
+	private Map<Long, List<ContentEntry>> contentMap = new HashMap<Long, List<ContentEntry>>();
 	private SoftReference<PDDocument> doc;
+	private boolean deduplicateByContent;
+	private boolean indexedColors = true;
+	private boolean ccittForBlackAndWhite;
+	private Executor executor;
+	private final Map<PDDocument, List<PendingImage>> pendingImages = new HashMap<PDDocument, List<PendingImage>>();
+	private PdfBoxGraphics2DImageDownsampler imageDownsampler = new PdfBoxGraphics2DImageDownsampler();
+	private PdfBoxGraphics2DSubImageCache subImageCache = new PdfBoxGraphics2DSubImageCache();
+
+	/**
+	 * Also reuse the encoded image for other image objects with exactly the same
+	 * pixels, e.g. when the same logo is loaded again for every chart. This needs
+	 * to hash the pixels of every new image object, so it is disabled by default.
+	 *
+	 * @param deduplicateByContent
+	 *            true to compare the image content.
+	 */
+	@SuppressWarnings("unused")
+	public void setDeduplicateByContent(boolean deduplicateByContent) {
+		this.deduplicateByContent = deduplicateByContent;
+	}
+
+	/**
+	 * Encode images with at most 256 colors using an /Indexed color space with 1,
+	 * 2, 4 or 8 bits per pixel, and pure black and white images with 1 bit
+	 * DeviceGray. This is lossless and enabled by default.
+	 *
+	 * @param indexedColors
+	 *            false to always encode all color components of every pixel.
+	 */
+	@SuppressWarnings("unused")
+	public void setIndexedColors(boolean indexedColors) {
+		this.indexedColors = indexedColors;
+	}
+
+	/**
+	 * Compress pure black and white images, e.g. scanned documents, using CCITT
+	 * group 4 instead of Flate. This is usually much smaller for scans, but slower.
+	 * Only used if indexed colors are enabled.
+	 *
+	 * @param ccittForBlackAndWhite
+	 *            true to use CCITT group 4 for black and white images.
+	 */
+	@SuppressWarnings("unused")
+	public void setCCITTForBlackAndWhite(boolean ccittForBlackAndWhite) {
+		this.ccittForBlackAndWhite = ccittForBlackAndWhite;
+	}
+
+	/**
+	 * Compress new images on the given executor, e.g. a thread pool, while the
+	 * drawing continues. The image XObject is returned at once and its data is
+	 * filled in when a {@link PdfBoxGraphics2D} of the document is disposed, see
+	 * {@link #finishPendingImages(PDDocument)}. The images must not be changed
+	 * until then.
+	 *
+	 * {@link #encodeBufferedImage(PDDocument, BufferedImage)} is then called on
+	 * the executor threads with a temporary document, so subclasses overriding it
+	 * must be thread safe. The temporary documents keep the compressed data in
+	 * temporary files, so the pending images need no heap.
+	 *
+	 * Only the compression runs on the executor. Like without an executor, the
+	 * encoder itself must only be used by one thread at a time.
+	 *
+	 * @param executor
+	 *            the executor, or null to compress the images on the drawing
+	 *            thread, which is the default.
+	 */
+	@SuppressWarnings("unused")
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Wait for all images of the document which are compressed on the executor
+	 * and fill in their image XObjects. {@link PdfBoxGraphics2D#dispose()} calls
+	 * this, you only need to call it yourself if you use this encoder without a
+	 * PdfBoxGraphics2D.
+	 */
+	public void finishPendingImages(PDDocument document) {
+		List<PendingImage> images;
+		synchronized (pendingImages) {
+			images = pendingImages.remove(document);
+		}
+		if (images == null)
+			return;
+		RuntimeException failure = null;
+		for (PendingImage pendingImage : images) {
+			/*
+			 * Even after a failure we must wait for all jobs before we can close their
+			 * documents.
+			 */
+			try {
+				PDImageXObject encoded = pendingImage.await();
+				if (failure == null) {
+					copyStream(pendingImage.document, encoded.getCOSObject(),
+							pendingImage.imageXObject.getCOSObject());
+					tagColorProfile(pendingImage.image, pendingImage.imageXObject);
+				}
+			} catch (IOException e) {
+				if (failure == null)
+					failure = new RuntimeException("Could not encode Image", e);
+			} catch (RuntimeException e) {
+				if (failure == null)
+					failure = e;
+			} finally {
+				try {
+					pendingImage.scratchDocument.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
 
 	@Override
 	public PDImageXObject encodeImage(PDDocument document, PDPageContentStream contentStream, Image image) {
-		final BufferedImage bi;
+		try {
+			resetOnNewDocument(document);
+			SoftReference<PDImageXObject> pdImageXObjectSoftReference = imageMap.get(new ImageSoftReference(image));
+			PDImageXObject imageXObject = pdImageXObjectSoftReference == null ? null
+					: pdImageXObjectSoftReference.get();
+			if (imageXObject == null) {
+				/*
+				 * Compressed images are embedded as they are, if possible.
+				 */
+				if (image instanceof PdfBoxGraphics2DEncodedImage)
+					imageXObject = PdfBoxGraphics2DEncodedImageFactory.createFromEncodedImage(document,
+							(PdfBoxGraphics2DEncodedImage) image);
+				if (imageXObject == null)
+					imageXObject = createImageXObject(document, toBufferedImage(image));
+				imageMap.put(new ImageSoftReference(image), new SoftReference<PDImageXObject>(imageXObject));
+			}
 
-		if (image instanceof BufferedImage) {
-			bi = (BufferedImage) image;
-		} else {
-			int width = image.getWidth(null);
-			int height = image.getHeight(null);
-			bi = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
-			Graphics graphics = bi.getGraphics();
-			if (!graphics.drawImage(image, 0, 0, null, null))
-				throw new IllegalStateException("Not fully loaded images are not supported.");
-			graphics.dispose();
+			return imageXObject;
+		} catch (IOException e) {
+			throw new RuntimeException("Could not encode Image", e);
 		}
+	}
 
+	/**
+	 * Encode a RenderedImage, e.g. a tiled image, without copying all its data
+	 * into a BufferedImage first. This is only possible for lossless encoding of
+	 * sRGB images with at most 8 bits per component, and if a subclass does not
+	 * change the encoding.
+	 *
+	 * @return the encoded image, or null if the image must be copied into a
+	 *         BufferedImage and encoded with
+	 *         {@link #encodeImage(PDDocument, PDPageContentStream, Image)}.
+	 */
+	PDImageXObject encodeRenderedImage(PDDocument document, RenderedImage image) {
+		if (!STREAM_RENDERED_IMAGES.get(getClass()))
+			return null;
 		try {
-			if (doc == null || doc.get() != document) {
-				imageMap = new HashMap<ImageSoftReference, SoftReference<PDImageXObject>>();
-				profileMap = new HashMap<ProfileSoftReference, SoftReference<PDColorSpace>>();
-				doc = new SoftReference<PDDocument>(document);
-			}
+			resetOnNewDocument(document);
 			SoftReference<PDImageXObject> pdImageXObjectSoftReference = imageMap.get(new ImageSoftReference(image));
 			PDImageXObject imageXObject = pdImageXObjectSoftReference == null ? null
 					: pdImageXObjectSoftReference.get();
 			if (imageXObject == null) {
-				imageXObject = LosslessFactory.createFromImage(document, bi);
+				imageXObject = PdfBoxGraphics2DPredictorImageFactory.createFromRenderedImage(document, image);
+				if (imageXObject != null)
+					imageMap.put(new ImageSoftReference(image), new SoftReference<PDImageXObject>(imageXObject));
+			}
+			return imageXObject;
+		} catch (IOException e) {
+			throw new RuntimeException("Could not encode Image", e);
+		}
+	}
+
+	private static final PdfBoxGraphics2DClassValue<Boolean> STREAM_RENDERED_IMAGES = new PdfBoxGraphics2DClassValue<Boolean>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			for (Class<?> c = type; c != PdfBoxGraphics2DLosslessImageEncoder.class; c = c.getSuperclass()) {
+				for (Method method : c.getDeclaredMethods()) {
+					if (method.getName().equals("encodeImage") || method.getName().equals("encodeBufferedImage"))
+						return false;
+				}
+			}
+			return true;
+		}
+	};
+
+	private void resetOnNewDocument(PDDocument document) {
+		if (doc == null || doc.get() != document) {
+			PDDocument previousDocument = doc == null ? null : doc.get();
+			if (previousDocument != null)
+				finishPendingImages(previousDocument);
+			imageMap = new HashMap<ImageSoftReference, SoftReference<PDImageXObject>>();
+			profileMap = new HashMap<ProfileSoftReference, SoftReference<PDColorSpace>>();
+			contentMap = new HashMap<Long, List<ContentEntry>>();
+			imageDownsampler = new PdfBoxGraphics2DImageDownsampler();
+			subImageCache = new PdfBoxGraphics2DSubImageCache();
+			doc = new SoftReference<PDDocument>(document);
+		}
+	}
+
+	/**
+	 * The scaled images must be the same image objects on every page, so that
+	 * they are only embedded once. So they are kept for the document here, next
+	 * to the encoded images, and not in the PdfBoxGraphics2D of a page.
+	 *
+	 * @return the downsampler for the document
+	 */
+	PdfBoxGraphics2DImageDownsampler getImageDownsampler(PDDocument document) {
+		resetOnNewDocument(document);
+		return imageDownsampler;
+	}
+
+	/**
+	 * Like {@link #getImageDownsampler(PDDocument)}, the sub images of the
+	 * document are kept here.
+	 *
+	 * @return the sub image cache for the document
+	 */
+	PdfBoxGraphics2DSubImageCache getSubImageCache(PDDocument document) {
+		resetOnNewDocument(document);
+		return subImageCache;
+	}
+
+	private static BufferedImage toBufferedImage(Image image) throws IOException {
+		if (image instanceof BufferedImage)
+			return (BufferedImage) image;
+		if (image instanceof PdfBoxGraphics2DEncodedImage)
+			return ((PdfBoxGraphics2DEncodedImage) image).decode();
+
+		/*
+		 * A VolatileImage knows if it is opaque, then we don't need an alpha channel.
+		 * For all other images the alpha channel is dropped later if it is unused.
+		 */
+		int width = image.getWidth(null);
+		int height = image.getHeight(null);
+		boolean opaque = image instanceof Transparency
+				&& ((Transparency) image).getTransparency() == Transparency.OPAQUE;
+		BufferedImage bi = new BufferedImage(width, height,
+				opaque ? BufferedImage.TYPE_3BYTE_BGR : BufferedImage.TYPE_4BYTE_ABGR);
+		Graphics graphics = bi.getGraphics();
+		if (!graphics.drawImage(image, 0, 0, null, null))
+			throw new IllegalStateException("Not fully loaded images are not supported.");
+		graphics.dispose();
+		return bi;
+	}
+
+	/**
+	 * Many images have an alpha channel, but are fully opaque. The soft mask would
+	 * be useless for them, so we encode them as a view of the image without the
+	 * alpha channel.
+	 *
+	 * @return the image without alpha channel, if it is fully opaque. Otherwise
+	 *         the image itself.
+	 */
+	static BufferedImage withoutUnusedAlpha(BufferedImage bi) {
+		ColorModel colorModel = bi.getColorModel();
+		if (!colorModel.hasAlpha() || colorModel.isAlphaPremultiplied())
+			return bi;
+		ColorModel opaqueColorModel;
+		if (colorModel instanceof DirectColorModel) {
+			DirectColorModel directColorModel = (DirectColorModel) colorModel;
+			opaqueColorModel = new DirectColorModel(directColorModel.getColorSpace(),
+					directColorModel.getPixelSize() - directColorModel.getComponentSize(3),
+					directColorModel.getRedMask(), directColorModel.getGreenMask(), directColorModel.getBlueMask(), 0,
+					false, directColorModel.getTransferType());
+		} else if (colorModel instanceof ComponentColorModel) {
+			int[] bits = Arrays.copyOf(colorModel.getComponentSize(), colorModel.getNumColorComponents());
+			opaqueColorModel = new ComponentColorModel(colorModel.getColorSpace(), bits, false, false,
+					Transparency.OPAQUE, colorModel.getTransferType());
+		} else {
+			return bi;
+		}
+
+		/*
+		 * Check the alpha channel, we can stop at the first not opaque pixel.
+		 */
+		WritableRaster alphaRaster = bi.getAlphaRaster();
+		if (alphaRaster == null)
+			return bi;
+		int opaqueAlpha = (1 << colorModel.getComponentSize(colorModel.getNumColorComponents())) - 1;
+		int width = alphaRaster.getWidth();
+		int[] alphaRow = new int[width];
+		for (int y = 0; y < alphaRaster.getHeight(); y++) {
+			alphaRaster.getSamples(alphaRaster.getMinX(), alphaRaster.getMinY() + y, width, 1, 0, alphaRow);
+			for (int alpha : alphaRow)
+				if (alpha != opaqueAlpha)
+					return bi;
+		}
+
+		/*
+		 * The alpha is always the last band, the view just leaves it out.
+		 */
+		WritableRaster raster = bi.getRaster();
+		int[] colorBands = new int[colorModel.getNumColorComponents()];
+		for (int i = 0; i < colorBands.length; i++)
+			colorBands[i] = i;
+		WritableRaster colorRaster = raster.createWritableChild(raster.getMinX(), raster.getMinY(),
+				raster.getWidth(), raster.getHeight(), 0, 0, colorBands);
+		return new BufferedImage(opaqueColorModel, colorRaster, false, null);
+	}
+
+	/**
+	 * Encode a new image. Subclasses can override this to use another
+	 * compression; the result is cached and tagged with the color profile of the
+	 * image like the lossless encoded images.
+	 */
+	protected PDImageXObject encodeBufferedImage(PDDocument document, BufferedImage bi) throws IOException {
+		if (indexedColors) {
+			PDImageXObject imageXObject = PdfBoxGraphics2DIndexedImageFactory.createFromImage(document, bi,
+					ccittForBlackAndWhite);
+			if (imageXObject != null)
+				return imageXObject;
+		}
+		PDImageXObject imageXObject = PdfBoxGraphics2DPredictorImageFactory.createFromImage(document, bi);
+		if (imageXObject != null)
+			return imageXObject;
+		return LosslessFactory.createFromImage(document, bi);
+	}
+
+	private PDImageXObject createImageXObject(PDDocument document, BufferedImage bi) throws IOException {
+		Long contentHash = null;
+		if (deduplicateByContent) {
+			contentHash = contentHash(bi);
+			PDImageXObject imageXObject = findSameContent(contentHash, bi);
+			if (imageXObject != null)
+				return imageXObject;
+		}
+		PDImageXObject imageXObject;
+		if (executor != null) {
+			imageXObject = encodeLater(document, bi);
+		} else {
+			imageXObject = encodeBufferedImage(document, withoutUnusedAlpha(bi));
+			tagColorProfile(bi, imageXObject);
+		}
+		if (contentHash != null)
+			addContent(contentHash, bi, imageXObject);
+		return imageXObject;
+	}
+
+	private void tagColorProfile(BufferedImage bi, PDImageXObject imageXObject) throws IOException {
+		/*
+		 * Do we have a color profile we need to embed?
+		 */
+		if (bi.getColorModel().getColorSpace() instanceof ICC_ColorSpace) {
+			ICC_Profile profile = ((ICC_ColorSpace) bi.getColorModel().getColorSpace()).getProfile();
+			/*
+			 * Only tag a profile if it is not the default sRGB profile.
+			 */
+			if (((ICC_ColorSpace) bi.getColorModel().getColorSpace()).getProfile() != ICC_Profile
+					.getInstance(ColorSpace.CS_sRGB)) {
+
+				SoftReference<PDColorSpace> pdProfileRef = profileMap.get(new ProfileSoftReference(profile));
 
 				/*
-				 * Do we have a color profile we need to embed?
+				 * We try to reduce the copies of the same ICC profile in the PDF file. If the
+				 * image already has a profile, it will be the right one. Otherwise we must
+				 * assume that the image is now in sRGB.
 				 */
-				if (bi.getColorModel().getColorSpace() instanceof ICC_ColorSpace) {
-					ICC_Profile profile = ((ICC_ColorSpace) bi.getColorModel().getColorSpace()).getProfile();
-					/*
-					 * Only tag a profile if it is not the default sRGB profile.
-					 */
-					if (((ICC_ColorSpace) bi.getColorModel().getColorSpace()).getProfile() != ICC_Profile
-							.getInstance(ColorSpace.CS_sRGB)) {
-
-						SoftReference<PDColorSpace> pdProfileRef = profileMap.get(new ProfileSoftReference(profile));
-
-						/*
-						 * We try to reduce the copies of the same ICC profile in the PDF file. If the
-						 * image already has a profile, it will be the right one. Otherwise we must
-						 * assume that the image is now in sRGB.
-						 */
-						PDColorSpace pdProfile = pdProfileRef == null ? null : pdProfileRef.get();
-						if (pdProfile == null) {
-							pdProfile = imageXObject.getColorSpace();
-							if (pdProfile instanceof PDICCBased) {
-								profileMap.put(new ProfileSoftReference(profile),
-										new SoftReference<PDColorSpace>(pdProfile));
-							}
-						}
-						imageXObject.setColorSpace(pdProfile);
+				PDColorSpace pdProfile = pdProfileRef == null ? null : pdProfileRef.get();
+				if (pdProfile == null) {
+					pdProfile = imageXObject.getColorSpace();
+					if (pdProfile instanceof PDICCBased) {
+						profileMap.put(new ProfileSoftReference(profile),
+								new SoftReference<PDColorSpace>(pdProfile));
 					}
 				}
-				imageMap.put(new ImageSoftReference(image), new SoftReference<PDImageXObject>(imageXObject));
+				imageXObject.setColorSpace(pdProfile);
 			}
+		}
+	}
 
-			return imageXObject;
-		} catch (IOException e) {
-			throw new RuntimeException("Could not encode Image", e);
+	/**
+	 * Start encoding the image on the executor.
+	 *
+	 * @return the still empty image XObject, which gets its data in
+	 *         {@link #finishPendingImages(PDDocument)}.
+	 */
+	private PDImageXObject encodeLater(PDDocument document, final BufferedImage bi) throws IOException {
+		/*
+		 * PDDocument is not thread safe, so every job encodes into its own document
+		 * and the result is copied later.
+		 */
+		final PDDocument scratchDocument = new PDDocument(MemoryUsageSetting.setupTempFileOnly());
+		FutureTask<PDImageXObject> task = new FutureTask<PDImageXObject>(new Callable<PDImageXObject>() {
+			@Override
+			public PDImageXObject call() throws Exception {
+				return encodeBufferedImage(scratchDocument, withoutUnusedAlpha(bi));
+			}
+		});
+		PendingImage pendingImage = new PendingImage(document, new PDImageXObject(new PDStream(document), null), bi,
+				scratchDocument, task);
+		synchronized (pendingImages) {
+			List<PendingImage> images = pendingImages.get(document);
+			if (images == null) {
+				images = new ArrayList<PendingImage>();
+				pendingImages.put(document, images);
+			}
+			images.add(pendingImage);
+		}
+		executor.execute(task);
+		return pendingImage.imageXObject;
+	}
+
+	private static final class PendingImage {
+		private final PDDocument document;
+		private final PDImageXObject imageXObject;
+		private final BufferedImage image;
+		private final PDDocument scratchDocument;
+		private final FutureTask<PDImageXObject> task;
+
+		PendingImage(PDDocument document, PDImageXObject imageXObject, BufferedImage image,
+				PDDocument scratchDocument, FutureTask<PDImageXObject> task) {
+			this.document = document;
+			this.imageXObject = imageXObject;
+			this.image = image;
+			this.scratchDocument = scratchDocument;
+			this.task = task;
+		}
+
+		PDImageXObject await() throws IOException {
+			try {
+				return task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the image", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new IOException(e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Copy the compressed data and the entries of the source stream into the
+	 * target stream. Entries the target already has, e.g. /Interpolate, are kept.
+	 */
+	private static void copyStream(PDDocument document, COSStream source, COSStream target) throws IOException {
+		OutputStream outputStream = target.createRawOutputStream();
+		try {
+			InputStream inputStream = source.createRawInputStream();
+			try {
+				IOUtils.copy(inputStream, outputStream);
+			} finally {
+				inputStream.close();
+			}
+		} finally {
+			outputStream.close();
+		}
+		for (Map.Entry<COSName, COSBase> entry : source.entrySet()) {
+			if (!entry.getKey().equals(COSName.LENGTH) && !target.containsKey(entry.getKey()))
+				target.setItem(entry.getKey(), copyToDocument(document, entry.getValue()));
+		}
+	}
+
+	/**
+	 * Copy an object from a scratch document, e.g. the soft mask or the ICC
+	 * profile of an image. Only streams, dictionaries and arrays need a copy.
+	 */
+	private static COSBase copyToDocument(PDDocument document, COSBase base) throws IOException {
+		if (base instanceof COSObject)
+			base = ((COSObject) base).getObject();
+		if (base instanceof COSStream) {
+			COSStream copy = document.getDocument().createCOSStream();
+			copyStream(document, (COSStream) base, copy);
+			return copy;
+		}
+		if (base instanceof COSDictionary) {
+			COSDictionary copy = new COSDictionary();
+			for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) base).entrySet())
+				copy.setItem(entry.getKey(), copyToDocument(document, entry.getValue()));
+			return copy;
+		}
+		if (base instanceof COSArray) {
+			COSArray copy = new COSArray();
+			for (COSBase element : (COSArray) base)
+				copy.add(copyToDocument(document, element));
+			return copy;
+		}
+		return base;
+	}
+
+	private static class ContentEntry {
+		private final SoftReference<BufferedImage> image;
+		private final SoftReference<PDImageXObject> imageXObject;
+
+		ContentEntry(BufferedImage image, PDImageXObject imageXObject) {
+			this.image = new SoftReference<BufferedImage>(image);
+			this.imageXObject = new SoftReference<PDImageXObject>(imageXObject);
+		}
+	}
+
+	private PDImageXObject findSameContent(long contentHash, BufferedImage bi) {
+		List<ContentEntry> entries = contentMap.get(contentHash);
+		if (entries == null)
+			return null;
+		for (ContentEntry entry : entries) {
+			BufferedImage other = entry.image.get();
+			PDImageXObject imageXObject = entry.imageXObject.get();
+			/*
+			 * The hash may collide, so we must compare the content.
+			 */
+			if (other != null && imageXObject != null && sameContent(bi, other))
+				return imageXObject;
+		}
+		return null;
+	}
+
+	private void addContent(long contentHash, BufferedImage bi, PDImageXObject imageXObject) {
+		List<ContentEntry> entries = contentMap.get(contentHash);
+		if (entries == null) {
+			entries = new ArrayList<ContentEntry>(1);
+			contentMap.put(contentHash, entries);
+		}
+		entries.add(new ContentEntry(bi, imageXObject));
+	}
+
+	/**
+	 * 64 bit FNV-1a hash over the size, the color model and the raw pixel data of
+	 * the image.
+	 */
+	static long contentHash(BufferedImage bi) {
+		long hash = 0xcbf29ce484222325L;
+		hash = (hash ^ bi.getWidth()) * 0x100000001b3L;
+		hash = (hash ^ bi.getHeight()) * 0x100000001b3L;
+		hash = (hash ^ bi.getColorModel().hashCode()) * 0x100000001b3L;
+		Raster raster = bi.getRaster();
+		int width = raster.getWidth();
+		int minX = raster.getMinX();
+		int minY = raster.getMinY();
+		Object row = null;
+		for (int y = 0; y < raster.getHeight(); y++) {
+			row = raster.getDataElements(minX, minY + y, width, 1, row);
+			if (row instanceof byte[]) {
+				for (byte v : (byte[]) row)
+					hash = (hash ^ v) * 0x100000001b3L;
+			} else if (row instanceof short[]) {
+				for (short v : (short[]) row)
+					hash = (hash ^ v) * 0x100000001b3L;
+			} else if (row instanceof int[]) {
+				for (int v : (int[]) row)
+					hash = (hash ^ v) * 0x100000001b3L;
+			} else {
+				/*
+				 * float or double data, this is rare enough to just hash the boxed row.
+				 */
+				hash = (hash ^ Arrays.deepHashCode(new Object[] { row })) * 0x100000001b3L;
+			}
+		}
+		return hash;
+	}
+
+	static boolean sameContent(BufferedImage a, BufferedImage b) {
+		if (a == b)
+			return true;
+		if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight())
+			return false;
+		if (!a.getColorModel().equals(b.getColorModel())
+				|| !a.getColorModel().getColorSpace().equals(b.getColorModel().getColorSpace()))
+			return false;
+		Raster rasterA = a.getRaster();
+		Raster rasterB = b.getRaster();
+		if (rasterA.getTransferType() != rasterB.getTransferType())
+			return false;
+		int width = rasterA.getWidth();
+		Object rowA = null;
+		Object rowB = null;
+		for (int y = 0; y < rasterA.getHeight(); y++) {
+			rowA = rasterA.getDataElements(rasterA.getMinX(), rasterA.getMinY() + y, width, 1, rowA);
+			rowB = rasterB.getDataElements(rasterB.getMinX(), rasterB.getMinY() + y, width, 1, rowB);
+			if (!Arrays.deepEquals(new Object[] { rowA }, new Object[] { rowB }))
+				return false;
 		}
+		return true;
 	}
 
-	private class ImageSoftReference extends SoftReference<Image> {
-		ImageSoftReference(Image referent) {
+	/**
+	 * Soft reference to an Image or RenderedImage, compared by identity.
+	 */
+	private class ImageSoftReference extends SoftReference<Object> {
+		ImageSoftReference(Object referent) {
 			super(referent);
 		}
 
@@ -123,7 +663,7 @@ public class PdfBoxGraphics2DLosslessImageEncoder implements IPdfBoxGraphics2DIm
 
 		@Override
 		public int hashCode() {
-			Image image = get();
+			Object image = get();
 			if (image == null)
 				return 0;
 			return image.hashCode();
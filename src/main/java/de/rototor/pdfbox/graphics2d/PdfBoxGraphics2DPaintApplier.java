@@ -1,18 +1,23 @@
 package de.rototor.pdfbox.graphics2d;
 
 import org.apache.pdfbox.cos.*;
-import org.apache.pdfbox.multipdf.PDFCloneUtility;
+import org.apache.pdfbox.io.IOUtils;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.PDResources;
 import org.apache.pdfbox.pdmodel.common.COSObjectable;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.function.PDFunction;
+import org.apache.pdfbox.pdmodel.common.function.PDFunctionType0;
+import org.apache.pdfbox.pdmodel.common.function.PDFunctionType2;
 import org.apache.pdfbox.pdmodel.common.function.PDFunctionType3;
 import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
 import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
 import org.apache.pdfbox.pdmodel.graphics.color.PDPattern;
 import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.pdmodel.graphics.pattern.PDAbstractPattern;
 import org.apache.pdfbox.pdmodel.graphics.pattern.PDTilingPattern;
 import org.apache.pdfbox.pdmodel.graphics.shading.*;
 import org.apache.pdfbox.pdmodel.graphics.state.PDExtendedGraphicsState;
@@ -25,16 +30,25 @@ import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Default paint mapper.
  *
- * NOTE: Objects of this class are stateful and *not* thread safe!
+ * NOTE: Objects of this class are stateful and *not* thread safe! Use
+ * {@link PdfBoxGraphics2DConcurrentPaintApplier} if you want to share one
+ * applier between threads.
  */
 public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintApplier {
 	@SuppressWarnings("WeakerAccess")
@@ -53,6 +67,8 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 		protected Composite composite;
 		private COSDictionary dictExtendedState;
 		private IPaintEnv env;
+		private DocumentCache cache;
+		private PreparedPaint preparedPaint;
 		public AffineTransform tf;
 
 		private void ensureExtendedState() {
@@ -64,12 +80,120 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 		}
 	}
 
-	private ExtGStateCache extGStateCache = new ExtGStateCache();
-	private PDShadingCache shadingCache = new PDShadingCache();
+	/**
+	 * All cached resources of one document. Resources can not be shared between
+	 * documents, so we start with a fresh cache as soon as the document changes.
+	 */
+	static class DocumentCache {
+		private final ExtGStateCache extGStateCache = new ExtGStateCache();
+		private final PDShadingCache shadingCache = new PDShadingCache();
+		private final FunctionCache functionCache = new FunctionCache();
+		private final Map<GradientKey, PDShading> gradientCache = new BoundedCache<GradientKey, PDShading>(
+				MAX_CACHE_ENTRIES);
+		private final Map<PaintKey, PreparedPaint> paintCache = new BoundedCache<PaintKey, PreparedPaint>(
+				MAX_CACHE_ENTRIES);
+		private final Map<TextureKey, PatternColor> textureCache = new BoundedCache<TextureKey, PatternColor>(
+				MAX_CACHE_ENTRIES);
+		private final Map<PatternTileKey, PDFormXObject> patternTileCache = new BoundedCache<PatternTileKey, PDFormXObject>(
+				MAX_CACHE_ENTRIES);
+		private final Map<COSDictionary, PDShading> importedShadings = new BoundedCache<COSDictionary, PDShading>(
+				MAX_CACHE_ENTRIES);
+		/*
+		 * Foreign objects, which we already copied into our document, e.g. color
+		 * spaces and functions shared by many shadings
+		 */
+		private final Map<COSBase, COSBase> importedObjects = new BoundedCache<COSBase, COSBase>(MAX_CACHE_ENTRIES);
+		/*
+		 * The color mapper may return colors with a color space of this document, so
+		 * the last mapped color is only reused within the document.
+		 */
+		private volatile OpaqueColor lastOpaqueColor;
+	}
+
+	private static final int MAX_CACHE_ENTRIES = 4096;
+
+	/**
+	 * A map which drops the least recently used entry when it grows too big.
+	 */
+	@SuppressWarnings("serial")
+	private static class BoundedCache<K, V> extends LinkedHashMap<K, V> {
+		private final int maxEntries;
+
+		BoundedCache(int maxEntries) {
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > maxEntries;
+		}
+	}
+
+	private static final int SAMPLED_FUNCTION_SIZE = 256;
+
+	private DocumentCache documentCache;
+	private SoftReference<PDDocument> doc;
+	private int sampledFunctionMinStops;
+	private boolean grayOperators;
+
+	/**
+	 * Encode gradients with at least the given number of color stops as one sampled
+	 * (type 0) function instead of a stitching function of linear interpolations.
+	 * Viewers can evaluate the sampled function faster, but it is only an
+	 * approximation of the gradient.
+	 *
+	 * @param minStops
+	 *            the minimum number of color stops, 0 disables sampled functions.
+	 *            This is the default.
+	 */
+	@SuppressWarnings("unused")
+	public void setSampledFunctionMinStops(int minStops) {
+		this.sampledFunctionMinStops = minStops;
+	}
+
+	/**
+	 * Write RGB colors with equal components using the DeviceGray operators
+	 * (g/G), which are shorter than setting an RGB color. Note that this changes
+	 * the color space of these colors to DeviceGray.
+	 *
+	 * @param grayOperators
+	 *            true to use gray operators, default is false.
+	 */
+	@SuppressWarnings("unused")
+	public void setUseGrayOperators(boolean grayOperators) {
+		this.grayOperators = grayOperators;
+	}
+
+	/**
+	 * @return the caches for the given document
+	 */
+	DocumentCache getDocumentCache(PDDocument document) {
+		if (doc == null || doc.get() != document) {
+			documentCache = new DocumentCache();
+			doc = new SoftReference<PDDocument>(document);
+		}
+		return documentCache;
+	}
 
 	@Override
 	public PDShading applyPaint(Paint paint, PDPageContentStream contentStream, AffineTransform tf, IPaintEnv env)
 			throws IOException {
+		DocumentCache cache = getDocumentCache(env.getDocument());
+
+		/*
+		 * Paints are usually applied again and again for many shapes. If we already
+		 * applied this paint object with the same transform, we just replay what we
+		 * did back then.
+		 */
+		PaintKey paintKey = null;
+		if (paint != null && PAINT_TYPES.get(paint.getClass()).isCacheable() && PAINT_CACHE.get(getClass())) {
+			paintKey = new PaintKey(paint, tf, env);
+			PreparedPaint preparedPaint = cache.paintCache.get(paintKey);
+			if (preparedPaint != null)
+				return preparedPaint.apply(contentStream, env.getResources(), grayOperators);
+		}
+
 		PaintApplierState state = new PaintApplierState();
 		state.document = env.getDocument();
 		state.resources = env.getResources();
@@ -80,18 +204,158 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 		state.pdExtendedGraphicsState = null;
 		state.env = env;
 		state.tf = tf;
+		state.cache = cache;
+		if (paintKey != null)
+			state.preparedPaint = new PreparedPaint();
 		PDShading shading = applyPaint(paint, state);
-		if (state.pdExtendedGraphicsState != null)
-			contentStream.setGraphicsStateParameters(extGStateCache.makeUnqiue(state.pdExtendedGraphicsState));
+		PDExtendedGraphicsState extendedGraphicsState = null;
+		if (state.pdExtendedGraphicsState != null) {
+			extendedGraphicsState = cache.extGStateCache.makeUnqiue(state.pdExtendedGraphicsState);
+			contentStream.setGraphicsStateParameters(extendedGraphicsState);
+		}
+		if (paintKey != null) {
+			state.preparedPaint.shading = shading;
+			state.preparedPaint.extendedGraphicsState = extendedGraphicsState;
+			cache.paintCache.put(paintKey, state.preparedPaint);
+		}
 		return shading;
 	}
 
+	/**
+	 * Apply an opaque color without going through the generic paint handling.
+	 * This is by far the most common paint, so we avoid allocating the paint
+	 * state and reuse the mapped color of the last opaque color in the document.
+	 *
+	 * @return false if the color can not be applied this way and
+	 *         {@link #applyPaint(Paint, PDPageContentStream, AffineTransform, IPaintEnv)}
+	 *         must be used.
+	 */
+	boolean applyOpaqueColor(Color color, PDPageContentStream contentStream, IPaintEnv env) throws IOException {
+		if (color.getAlpha() != 255 || !isNoOpComposite(env.getComposite())
+				|| !OPAQUE_COLOR_FAST_PATH.get(getClass()))
+			return false;
+		IPdfBoxGraphics2DColorMapper colorMapper = env.getColorMapper();
+		DocumentCache cache = getDocumentCache(env.getDocument());
+		OpaqueColor opaqueColor = cache.lastOpaqueColor;
+		if (opaqueColor == null || opaqueColor.colorMapper != colorMapper || !colorEquals(opaqueColor.color, color)) {
+			opaqueColor = new OpaqueColor(color, colorMapper, colorMapper.mapColor(contentStream, color));
+			cache.lastOpaqueColor = opaqueColor;
+		}
+		setColor(contentStream, opaqueColor.pdColor, grayOperators ? opaqueColor.gray : -1);
+		return true;
+	}
+
+	/**
+	 * Set the stroking and non-stroking color.
+	 *
+	 * @param gray
+	 *            the gray value to write instead of the color, or -1 to write the
+	 *            color as it is.
+	 */
+	private static void setColor(PDPageContentStream contentStream, PDColor color, float gray) throws IOException {
+		if (gray >= 0) {
+			contentStream.setStrokingColor(gray);
+			contentStream.setNonStrokingColor(gray);
+		} else {
+			contentStream.setStrokingColor(color);
+			contentStream.setNonStrokingColor(color);
+		}
+	}
+
+	/**
+	 * @return the gray value if this is an RGB color with equal components,
+	 *         otherwise -1
+	 */
+	private static float grayValue(PDColor color) {
+		if (color.getColorSpace() != PDDeviceRGB.INSTANCE)
+			return -1;
+		float[] components = color.getComponents();
+		if (components[0] == components[1] && components[1] == components[2])
+			return components[0];
+		return -1;
+	}
+
+	/**
+	 * @return true if the composite does not change the output, i.e. there is no
+	 *         composite or it is a plain SRC_OVER without extra alpha.
+	 */
+	private static boolean isNoOpComposite(Composite composite) {
+		if (composite == null)
+			return true;
+		if (!(composite instanceof AlphaComposite))
+			return false;
+		AlphaComposite alphaComposite = (AlphaComposite) composite;
+		return alphaComposite.getRule() == AlphaComposite.SRC_OVER && alphaComposite.getAlpha() == 1f;
+	}
+
+	/*
+	 * Subclasses which change how paints or colors are applied must always get
+	 * their overridden methods called, so they don't get the fast path.
+	 */
+	private static final PdfBoxGraphics2DClassValue<Boolean> OPAQUE_COLOR_FAST_PATH = new PdfBoxGraphics2DClassValue<Boolean>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			for (Class<?> c = type; c != PdfBoxGraphics2DPaintApplier.class
+					&& c != PdfBoxGraphics2DConcurrentPaintApplier.class; c = c.getSuperclass()) {
+				for (Method method : c.getDeclaredMethods()) {
+					if (method.getName().equals("applyPaint") || method.getName().equals("applyAsStrokingColor"))
+						return false;
+				}
+			}
+			return true;
+		}
+	};
+
+	/*
+	 * A replayed paint does not call the methods which applied it the first time,
+	 * so subclasses overriding them don't get the paint cache.
+	 */
+	private static final PdfBoxGraphics2DClassValue<Boolean> PAINT_CACHE = new PdfBoxGraphics2DClassValue<Boolean>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			for (Class<?> c = type; c != PdfBoxGraphics2DPaintApplier.class
+					&& c != PdfBoxGraphics2DConcurrentPaintApplier.class; c = c.getSuperclass()) {
+				for (Method method : c.getDeclaredMethods()) {
+					String name = method.getName();
+					if (name.equals("applyPaint") || name.equals("applyAsStrokingColor")
+							|| name.equals("buildGradientFunction") || name.equals("buildType2Functions")
+							|| name.equals("buildType3Function"))
+						return false;
+				}
+			}
+			return true;
+		}
+	};
+
+	/*
+	 * Immutable, so that it can be swapped atomically when the applier is shared
+	 * between threads.
+	 */
+	private static final class OpaqueColor {
+		private final Color color;
+		private final IPdfBoxGraphics2DColorMapper colorMapper;
+		private final PDColor pdColor;
+		private final float gray;
+
+		OpaqueColor(Color color, IPdfBoxGraphics2DColorMapper colorMapper, PDColor pdColor) {
+			this.color = color;
+			this.colorMapper = colorMapper;
+			this.pdColor = pdColor;
+			this.gray = grayValue(pdColor);
+		}
+	}
+
 	@SuppressWarnings("WeakerAccess")
 	protected void applyAsStrokingColor(Color color, PaintApplierState state) throws IOException {
 		PDPageContentStream contentStream = state.contentStream;
 		IPdfBoxGraphics2DColorMapper colorMapper = state.colorMapper;
-		contentStream.setStrokingColor(colorMapper.mapColor(contentStream, color));
-		contentStream.setNonStrokingColor(colorMapper.mapColor(contentStream, color));
+		PDColor pdColor = colorMapper.mapColor(contentStream, color);
+		float gray = grayOperators ? grayValue(pdColor) : -1;
+		setColor(contentStream, pdColor, gray);
+		if (state.preparedPaint != null) {
+			state.preparedPaint.color = pdColor;
+			state.preparedPaint.gray = gray;
+		}
 
 		int alpha = color.getAlpha();
 		if (alpha < 255) {
@@ -119,37 +383,227 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 		if (paint == null)
 			return null;
 
-		String simpleName = paint.getClass().getSimpleName();
-		if (paint instanceof Color) {
+		switch (PAINT_TYPES.get(paint.getClass())) {
+		case COLOR:
 			applyAsStrokingColor((Color) paint, state);
-		} else if (simpleName.equals("LinearGradientPaint")) {
-			return shadingCache.makeUnqiue(buildLinearGradientShading(paint, state));
-		} else if (simpleName.equals("RadialGradientPaint")) {
-			return shadingCache.makeUnqiue(buildRadialGradientShading(paint, state));
-		} else if (simpleName.equals("PatternPaint")) {
+			break;
+		case LINEAR_GRADIENT:
+			return buildLinearGradientShading(paint, state);
+		case RADIAL_GRADIENT:
+			return buildRadialGradientShading(paint, state);
+		case PATTERN:
 			applyPatternPaint(paint, state);
-		} else if (paint instanceof GradientPaint) {
-			return shadingCache.makeUnqiue(buildGradientShading((GradientPaint) paint, state));
-		} else if (paint instanceof TexturePaint) {
+			break;
+		case GRADIENT:
+			return buildGradientShading((GradientPaint) paint, state);
+		case TEXTURE:
 			applyTexturePaint((TexturePaint) paint, state);
-		} else if (paint instanceof ShadingPaint) {
+			break;
+		case SHADING:
 			// PDFBox paint, we can import the shading directly
-			return shadingCache.makeUnqiue(importPDFBoxShadingPaint((ShadingPaint) paint, state));
-		} else {
+			return importPDFBoxShadingPaint((ShadingPaint) paint, state);
+		default:
 			System.err.println("Don't know paint " + paint.getClass().getName());
 		}
 
 		return null;
 	}
 
-	private PDShading importPDFBoxShadingPaint(ShadingPaint paint, PaintApplierState state) throws IOException {
-		PDFCloneUtility pdfCloneUtility = new PDFCloneUtility(state.document);
+	private enum PaintType {
+		COLOR, LINEAR_GRADIENT, RADIAL_GRADIENT, PATTERN, GRADIENT, TEXTURE, SHADING, UNKNOWN;
+
+		/**
+		 * @return true if the result of applying a paint of this type can be cached
+		 *         per paint object. The image of a TexturePaint can still be
+		 *         changed after it was applied, so it is not cached.
+		 */
+		boolean isCacheable() {
+			return this != COLOR && this != TEXTURE && this != UNKNOWN;
+		}
+	}
+
+	/**
+	 * Identifies one application of a paint object. The paint object is compared
+	 * by identity, so a paint must not change once it was applied. This holds for
+	 * colors and gradients, and we assume it for the graphics node of a Batik
+	 * PatternPaint, like the pattern tile cache does.
+	 *
+	 * The paint is only weakly referenced, so the cache does not keep paints
+	 * alive.
+	 */
+	private static final class PaintKey {
+		private final WeakReference<Paint> paint;
+		private final double[] matrix = new double[6];
+		private final Composite composite;
+		private final IPdfBoxGraphics2DColorMapper colorMapper;
+		private final IPdfBoxGraphics2DImageEncoder imageEncoder;
+		private final int hashCode;
+
+		PaintKey(Paint paint, AffineTransform tf, IPaintEnv env) {
+			this.paint = new WeakReference<Paint>(paint);
+			tf.getMatrix(matrix);
+			this.composite = env.getComposite();
+			this.colorMapper = env.getColorMapper();
+			this.imageEncoder = env.getImageEncoder();
+			int hash = System.identityHashCode(paint);
+			hash = 31 * hash + Arrays.hashCode(matrix);
+			hash = 31 * hash + (composite == null ? 0 : composite.hashCode());
+			this.hashCode = hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof PaintKey))
+				return false;
+			PaintKey other = (PaintKey) obj;
+			Paint paintObject = paint.get();
+			return paintObject != null && paintObject == other.paint.get() && hashCode == other.hashCode && colorMapper == other.colorMapper
+					&& imageEncoder == other.imageEncoder && Arrays.equals(matrix, other.matrix)
+					&& (composite == null ? other.composite == null : composite.equals(other.composite));
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	/**
+	 * Everything a paint did to the content stream, so that we can replay it
+	 * without doing any mapping again.
+	 */
+	private static final class PreparedPaint {
+		private Matrix matrix;
+		private PDColor color;
+		private float gray = -1;
+		private PDAbstractPattern pattern;
+		private PDColorSpace patternColorSpace;
+		private PDExtendedGraphicsState extendedGraphicsState;
+		private PDShading shading;
+
+		PDShading apply(PDPageContentStream contentStream, PDResources resources, boolean grayOperators)
+				throws IOException {
+			if (matrix != null)
+				contentStream.transform(matrix);
+			if (color != null)
+				setColor(contentStream, color, grayOperators ? gray : -1);
+			if (pattern != null) {
+				/*
+				 * The pattern may be used by another XForm, so it must be added to the
+				 * current resources. This gives the existing name if already added.
+				 */
+				PDColor patternColor = new PDColor(resources.add(pattern), patternColorSpace);
+				contentStream.setNonStrokingColor(patternColor);
+				contentStream.setStrokingColor(patternColor);
+			}
+			if (extendedGraphicsState != null)
+				contentStream.setGraphicsStateParameters(extendedGraphicsState);
+			return shading;
+		}
+	}
+
+	/*
+	 * The paint type only depends on the class of the paint, so we only have to
+	 * look at the class name once per class.
+	 */
+	private static final PdfBoxGraphics2DClassValue<PaintType> PAINT_TYPES = new PdfBoxGraphics2DClassValue<PaintType>() {
+		@Override
+		protected PaintType computeValue(Class<?> type) {
+			String simpleName = type.getSimpleName();
+			if (Color.class.isAssignableFrom(type))
+				return PaintType.COLOR;
+			if (simpleName.equals("LinearGradientPaint"))
+				return PaintType.LINEAR_GRADIENT;
+			if (simpleName.equals("RadialGradientPaint"))
+				return PaintType.RADIAL_GRADIENT;
+			if (simpleName.equals("PatternPaint"))
+				return PaintType.PATTERN;
+			if (GradientPaint.class.isAssignableFrom(type))
+				return PaintType.GRADIENT;
+			if (TexturePaint.class.isAssignableFrom(type))
+				return PaintType.TEXTURE;
+			if (ShadingPaint.class.isAssignableFrom(type))
+				return PaintType.SHADING;
+			return PaintType.UNKNOWN;
+		}
+	};
 
+	private static final PdfBoxGraphics2DClassValue<Boolean> SVG_COMPOSITES = new PdfBoxGraphics2DClassValue<Boolean>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			return type.getSimpleName().equals("SVGComposite");
+		}
+	};
+
+	private PDShading importPDFBoxShadingPaint(ShadingPaint paint, PaintApplierState state) throws IOException {
 		Matrix matrix = paint.getMatrix();
 		PDShading shading = paint.getShading();
 
 		state.contentStream.transform(matrix);
-		return PDShading.create((COSDictionary) pdfCloneUtility.cloneForNewDocument(shading.getCOSObject()));
+		if (state.preparedPaint != null)
+			state.preparedPaint.matrix = matrix;
+
+		/*
+		 * Every foreign shading is only copied once into our document
+		 */
+		COSDictionary sourceShading = shading.getCOSObject();
+		PDShading importedShading = state.cache.importedShadings.get(sourceShading);
+		if (importedShading == null) {
+			importedShading = state.cache.shadingCache.makeUnqiue(PDShading.create(
+					(COSDictionary) importObject(sourceShading, state.document, state.cache.importedObjects)));
+			state.cache.importedShadings.put(sourceShading, importedShading);
+		}
+		return importedShading;
+	}
+
+	/**
+	 * Deep copy a foreign object into our document. Like
+	 * {@link org.apache.pdfbox.multipdf.PDFCloneUtility}, but objects which were
+	 * already imported for the document are reused. The document is passed on
+	 * every call, so that the document cache does not keep it alive.
+	 *
+	 * @param imported
+	 *            the already imported objects, from the source to the copy
+	 */
+	private static COSBase importObject(COSBase base, PDDocument document, Map<COSBase, COSBase> imported)
+			throws IOException {
+		if (base instanceof COSObject)
+			base = ((COSObject) base).getObject();
+		if (!(base instanceof COSDictionary) && !(base instanceof COSArray))
+			return base;
+		COSBase copy = imported.get(base);
+		if (copy != null)
+			return copy;
+		if (base instanceof COSStream) {
+			COSStream stream = document.getDocument().createCOSStream();
+			InputStream input = ((COSStream) base).createRawInputStream();
+			OutputStream output = stream.createRawOutputStream();
+			try {
+				IOUtils.copy(input, output);
+			} finally {
+				input.close();
+				output.close();
+			}
+			copy = stream;
+		} else if (base instanceof COSDictionary) {
+			copy = new COSDictionary();
+		} else {
+			copy = new COSArray();
+		}
+		/*
+		 * Register the copy before copying the children, so that cycles end here
+		 */
+		imported.put(base, copy);
+		if (base instanceof COSDictionary) {
+			for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) base).entrySet())
+				((COSDictionary) copy).setItem(entry.getKey(), importObject(entry.getValue(), document, imported));
+		} else {
+			for (COSBase element : (COSArray) base)
+				((COSArray) copy).add(importObject(element, document, imported));
+		}
+		return copy;
 	}
 
 	/*
@@ -182,31 +636,49 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 		appearance.setResources(pattern.getResources());
 		appearance.setBBox(pattern.getBBox());
 
+		/*
+		 * The pattern tile itself does not depend on the pattern matrix, so we only
+		 * render it once and reuse the XForm for every application of the pattern.
+		 */
 		Object graphicsNode = getPropertyValue(paint, "getGraphicsNode");
-		PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(state.document, pattern.getBBox(),
-				state.env.getGraphics2D());
-		try {
-			Method paintMethod = graphicsNode.getClass().getMethod("paint", Graphics2D.class);
-			paintMethod.invoke(graphicsNode, pdfBoxGraphics2D);
-		} catch (Exception e) {
-			System.err.println("PdfBoxGraphics2DPaintApplier error while drawing Batik PatternPaint");
-			e.printStackTrace();
-			return;
+		PatternTileKey tileKey = new PatternTileKey(graphicsNode, anchorRect, state.colorMapper,
+				state.imageEncoder);
+		PDFormXObject xFormObject = state.cache.patternTileCache.get(tileKey);
+		if (xFormObject == null) {
+			PdfBoxGraphics2D pdfBoxGraphics2D = new PdfBoxGraphics2D(state.document, pattern.getBBox(),
+					state.env.getGraphics2D());
+			try {
+				Method paintMethod = graphicsNode.getClass().getMethod("paint", Graphics2D.class);
+				paintMethod.invoke(graphicsNode, pdfBoxGraphics2D);
+			} catch (Exception e) {
+				System.err.println("PdfBoxGraphics2DPaintApplier error while drawing Batik PatternPaint");
+				e.printStackTrace();
+				return;
+			}
+			pdfBoxGraphics2D.dispose();
+			xFormObject = pdfBoxGraphics2D.getXFormObject();
+			state.cache.patternTileCache.put(tileKey, xFormObject);
 		}
-		pdfBoxGraphics2D.dispose();
-		PDFormXObject xFormObject = pdfBoxGraphics2D.getXFormObject();
 
 		PDPageContentStream imageContentStream = new PDPageContentStream(state.document, appearance,
 				((COSStream) pattern.getCOSObject()).createOutputStream());
 		imageContentStream.drawForm(xFormObject);
 		imageContentStream.close();
 
-		PDColorSpace patternCS1 = new PDPattern(null);
+		applyPatternAsColor(pattern, new PDPattern(null), state);
+	}
+
+	private void applyPatternAsColor(PDAbstractPattern pattern, PDColorSpace patternColorSpace,
+			PaintApplierState state) throws IOException {
 		COSName tilingPatternName = state.resources.add(pattern);
-		PDColor patternColor = new PDColor(tilingPatternName, patternCS1);
+		PDColor patternColor = new PDColor(tilingPatternName, patternColorSpace);
 
 		state.contentStream.setNonStrokingColor(patternColor);
 		state.contentStream.setStrokingColor(patternColor);
+		if (state.preparedPaint != null) {
+			state.preparedPaint.pattern = pattern;
+			state.preparedPaint.patternColorSpace = patternColorSpace;
+		}
 	}
 
 	private void applyComposite(PaintApplierState state) {
@@ -225,7 +697,7 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 			AlphaComposite composite = (AlphaComposite) state.composite;
 			alpha = composite.getAlpha();
 			rule = composite.getRule();
-		} else if (state.composite.getClass().getSimpleName().equals("SVGComposite")) {
+		} else if (SVG_COMPOSITES.get(state.composite.getClass())) {
 			/*
 			 * Batik Composite
 			 */
@@ -284,12 +756,8 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 		 */
 		Color[] colors = getPropertyValue(paint, "getColors");
 		Color firstColor = colors[0];
-		PDColor firstColorMapped = state.colorMapper.mapColor(state.contentStream, firstColor);
 		applyAsStrokingColor(firstColor, state);
 
-		PDShadingType3 shading = new PDShadingType3(new COSDictionary());
-		shading.setShadingType(PDShading.SHADING_TYPE2);
-		shading.setColorSpace(firstColorMapped.getColorSpace());
 		float[] fractions = getPropertyValue(paint, "getFractions");
 		Point2D startPoint = getPropertyValue(paint, "getStartPoint");
 		Point2D endPoint = getPropertyValue(paint, "getEndPoint");
@@ -299,21 +767,9 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 		state.tf.transform(startPoint, startPoint);
 		state.tf.transform(endPoint, endPoint);
 
-		COSArray coords = new COSArray();
-		coords.add(new COSFloat((float) startPoint.getX()));
-		coords.add(new COSFloat((float) startPoint.getY()));
-		coords.add(new COSFloat((float) endPoint.getX()));
-		coords.add(new COSFloat((float) endPoint.getY()));
-		shading.setCoords(coords);
-
-		PDFunctionType3 type3 = buildType3Function(colors, fractions, state);
-
-		COSArray extend = new COSArray();
-		extend.add(COSBoolean.TRUE);
-		extend.add(COSBoolean.TRUE);
-		shading.setFunction(type3);
-		shading.setExtend(extend);
-		return shading;
+		float[] coords = new float[] { (float) startPoint.getX(), (float) startPoint.getY(), (float) endPoint.getX(),
+				(float) endPoint.getY() };
+		return buildAxialOrRadialShading(PDShading.SHADING_TYPE2, colors, fractions, coords, state);
 	}
 
 	private PDShading buildRadialGradientShading(Paint paint, PaintApplierState state) throws IOException {
@@ -324,12 +780,8 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 		 */
 		Color[] colors = getPropertyValue(paint, "getColors");
 		Color firstColor = colors[0];
-		PDColor firstColorMapped = state.colorMapper.mapColor(state.contentStream, firstColor);
 		applyAsStrokingColor(firstColor, state);
 
-		PDShadingType3 shading = new PDShadingType3(new COSDictionary());
-		shading.setShadingType(PDShading.SHADING_TYPE3);
-		shading.setColorSpace(firstColorMapped.getColorSpace());
 		float[] fractions = getPropertyValue(paint, "getFractions");
 		Point2D centerPoint = getPropertyValue(paint, "getCenterPoint");
 		Point2D focusPoint = getPropertyValue(paint, "getFocusPoint");
@@ -341,35 +793,16 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 		float radius = getPropertyValue(paint, "getRadius");
 		radius = (float) Math.abs(radius * state.tf.getScaleX());
 
-		COSArray coords = new COSArray();
-
-		coords.add(new COSFloat((float) centerPoint.getX()));
-		coords.add(new COSFloat((float) centerPoint.getY()));
-		coords.add(new COSFloat(0));
-		coords.add(new COSFloat((float) focusPoint.getX()));
-		coords.add(new COSFloat((float) focusPoint.getY()));
-		coords.add(new COSFloat(radius));
-		shading.setCoords(coords);
-
-		PDFunctionType3 type3 = buildType3Function(colors, fractions, state);
-
-		COSArray extend = new COSArray();
-		extend.add(COSBoolean.TRUE);
-		extend.add(COSBoolean.TRUE);
-		shading.setFunction(type3);
-		shading.setExtend(extend);
-		return shading;
+		float[] coords = new float[] { (float) centerPoint.getX(), (float) centerPoint.getY(), 0,
+				(float) focusPoint.getX(), (float) focusPoint.getY(), radius };
+		return buildAxialOrRadialShading(PDShading.SHADING_TYPE3, colors, fractions, coords, state);
 	}
 
 	private PDShading buildGradientShading(GradientPaint gradientPaint, PaintApplierState state) throws IOException {
 		Color[] colors = new Color[] { gradientPaint.getColor1(), gradientPaint.getColor2() };
 		Color firstColor = colors[0];
-		PDColor firstColorMapped = state.colorMapper.mapColor(state.contentStream, firstColor);
 		applyAsStrokingColor(firstColor, state);
 
-		PDShadingType3 shading = new PDShadingType3(new COSDictionary());
-		shading.setShadingType(PDShading.SHADING_TYPE2);
-		shading.setColorSpace(firstColorMapped.getColorSpace());
 		float[] fractions = new float[] { 0, 1 };
 		Point2D startPoint = gradientPaint.getPoint1();
 		Point2D endPoint = gradientPaint.getPoint2();
@@ -377,26 +810,61 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 		state.tf.transform(startPoint, startPoint);
 		state.tf.transform(endPoint, endPoint);
 
-		COSArray coords = new COSArray();
-		coords.add(new COSFloat((float) startPoint.getX()));
-		coords.add(new COSFloat((float) startPoint.getY()));
-		coords.add(new COSFloat((float) endPoint.getX()));
-		coords.add(new COSFloat((float) endPoint.getY()));
-		shading.setCoords(coords);
+		float[] coords = new float[] { (float) startPoint.getX(), (float) startPoint.getY(), (float) endPoint.getX(),
+				(float) endPoint.getY() };
+		return buildAxialOrRadialShading(PDShading.SHADING_TYPE2, colors, fractions, coords, state);
+	}
+
+	/**
+	 * Build an axial (type 2) or radial (type 3) shading. We first look for an
+	 * already built shading with the same parameters, so that we don't have to
+	 * build the COS objects again for the same gradient.
+	 */
+	private PDShading buildAxialOrRadialShading(int shadingType, Color[] colors, float[] fractions, float[] coords,
+			PaintApplierState state) throws IOException {
+		GradientKey key = new GradientKey(shadingType, colors, fractions, coords, state.colorMapper);
+		PDShading cachedShading = state.cache.gradientCache.get(key);
+		if (cachedShading != null)
+			return cachedShading;
+
+		PDColor firstColorMapped = state.colorMapper.mapColor(state.contentStream, colors[0]);
+		PDShadingType3 shading = new PDShadingType3(new COSDictionary());
+		shading.setShadingType(shadingType);
+		shading.setColorSpace(firstColorMapped.getColorSpace());
+
+		COSArray coordsArray = new COSArray();
+		for (float coord : coords)
+			coordsArray.add(new COSFloat(coord));
+		shading.setCoords(coordsArray);
 
-		PDFunctionType3 type3 = buildType3Function(colors, fractions, state);
+		PDFunction function = buildGradientFunction(colors, fractions, state);
 
 		COSArray extend = new COSArray();
 		extend.add(COSBoolean.TRUE);
 		extend.add(COSBoolean.TRUE);
-
-		shading.setFunction(type3);
+		shading.setFunction(function);
 		shading.setExtend(extend);
-		return shading;
+
+		PDShading uniqueShading = state.cache.shadingCache.makeUnqiue(shading);
+		state.cache.gradientCache.put(key, uniqueShading);
+		return uniqueShading;
 	}
 
 	private void applyTexturePaint(TexturePaint texturePaint, PaintApplierState state) throws IOException {
 		Rectangle2D anchorRect = texturePaint.getAnchorRect();
+		BufferedImage texturePaintImage = texturePaint.getImage();
+
+		/*
+		 * The pattern only depends on the image and the anchor rect, so different
+		 * TexturePaint objects with the same image can share it.
+		 */
+		TextureKey textureKey = new TextureKey(texturePaintImage, anchorRect, state.imageEncoder);
+		PatternColor cachedPattern = state.cache.textureCache.get(textureKey);
+		if (cachedPattern != null) {
+			applyPatternAsColor(cachedPattern.pattern, cachedPattern.colorSpace, state);
+			return;
+		}
+
 		PDTilingPattern pattern = new PDTilingPattern();
 		pattern.setPaintType(PDTilingPattern.PAINT_COLORED);
 		pattern.setTilingType(PDTilingPattern.TILING_CONSTANT_SPACING_FASTER_TILING);
@@ -417,7 +885,6 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 
 		PDPageContentStream imageContentStream = new PDPageContentStream(state.document, appearance,
 				((COSStream) pattern.getCOSObject()).createOutputStream());
-		BufferedImage texturePaintImage = texturePaint.getImage();
 		PDImageXObject imageXObject = state.imageEncoder.encodeImage(state.document, imageContentStream,
 				texturePaintImage);
 
@@ -428,12 +895,102 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 				texturePaintImage.getWidth() * ratioW, -paintHeight);
 		imageContentStream.close();
 
-		PDColorSpace patternCS1 = new PDPattern(null, imageXObject.getColorSpace());
-		COSName tilingPatternName = state.resources.add(pattern);
-		PDColor patternColor = new PDColor(tilingPatternName, patternCS1);
+		/*
+		 * A colored pattern has no underlying color space. The image may also still be
+		 * encoded in the background.
+		 */
+		PDColorSpace patternColorSpace = new PDPattern(null);
+		state.cache.textureCache.put(textureKey, new PatternColor(pattern, patternColorSpace));
+		applyPatternAsColor(pattern, patternColorSpace, state);
+	}
 
-		state.contentStream.setNonStrokingColor(patternColor);
-		state.contentStream.setStrokingColor(patternColor);
+	private static final class PatternTileKey {
+		private final Object graphicsNode;
+		private final Rectangle2D patternRect;
+		private final IPdfBoxGraphics2DColorMapper colorMapper;
+		private final IPdfBoxGraphics2DImageEncoder imageEncoder;
+
+		PatternTileKey(Object graphicsNode, Rectangle2D patternRect, IPdfBoxGraphics2DColorMapper colorMapper,
+				IPdfBoxGraphics2DImageEncoder imageEncoder) {
+			this.graphicsNode = graphicsNode;
+			this.patternRect = (Rectangle2D) patternRect.clone();
+			this.colorMapper = colorMapper;
+			this.imageEncoder = imageEncoder;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof PatternTileKey))
+				return false;
+			PatternTileKey other = (PatternTileKey) obj;
+			return graphicsNode == other.graphicsNode && colorMapper == other.colorMapper
+					&& imageEncoder == other.imageEncoder && patternRect.equals(other.patternRect);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(graphicsNode) + patternRect.hashCode();
+		}
+	}
+
+	/**
+	 * A pattern and the pattern color space to use it with.
+	 */
+	private static final class PatternColor {
+		private final PDAbstractPattern pattern;
+		private final PDColorSpace colorSpace;
+
+		PatternColor(PDAbstractPattern pattern, PDColorSpace colorSpace) {
+			this.pattern = pattern;
+			this.colorSpace = colorSpace;
+		}
+	}
+
+	private static final class TextureKey {
+		private final BufferedImage image;
+		private final Rectangle2D anchorRect;
+		private final IPdfBoxGraphics2DImageEncoder imageEncoder;
+
+		TextureKey(BufferedImage image, Rectangle2D anchorRect, IPdfBoxGraphics2DImageEncoder imageEncoder) {
+			this.image = image;
+			this.anchorRect = (Rectangle2D) anchorRect.clone();
+			this.imageEncoder = imageEncoder;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TextureKey))
+				return false;
+			TextureKey other = (TextureKey) obj;
+			return image == other.image && imageEncoder == other.imageEncoder && anchorRect.equals(other.anchorRect);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(image) + anchorRect.hashCode();
+		}
+	}
+
+	/**
+	 * Build the function of a gradient shading. Two stop gradients get a single
+	 * type 2 function. Gradients with many stops are encoded as one sampled
+	 * function if enabled by {@link #setSampledFunctionMinStops(int)}, all other
+	 * gradients get a stitching function.
+	 */
+	@SuppressWarnings("WeakerAccess")
+	protected PDFunction buildGradientFunction(Color[] colors, float[] fractions, PaintApplierState state)
+			throws IOException {
+		if (colors.length == 2) {
+			COSArray domain = new COSArray();
+			domain.add(new COSFloat(0));
+			domain.add(new COSFloat(1));
+			PDColor c0 = state.colorMapper.mapColor(state.contentStream, colors[0]);
+			PDColor c1 = state.colorMapper.mapColor(state.contentStream, colors[1]);
+			return new PDFunctionType2(buildType2Function(c0, c1, domain, state));
+		}
+		if (sampledFunctionMinStops > 0 && colors.length >= sampledFunctionMinStops)
+			return buildSampledFunction(colors, state);
+		return buildType3Function(colors, fractions, state);
 	}
 
 	@SuppressWarnings("WeakerAccess")
@@ -452,51 +1009,125 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 		range.add(new COSFloat(0));
 		range.add(new COSFloat(1));
 		COSArray bounds = new COSArray();
-		for (int i = 2; i < colors.length; i++)
-			bounds.add(new COSFloat((1.0f / colors.length) * (i - 1)));
+		float[] stitchingBounds = stitchingBounds(colors.length);
+		for (int i = 1; i < colors.length - 1; i++)
+			bounds.add(new COSFloat(stitchingBounds[i]));
 
 		COSArray functions = buildType2Functions(colors, domain, encode, state);
 
 		function.setItem(COSName.FUNCTIONS, functions);
 		function.setItem(COSName.BOUNDS, bounds);
 		function.setItem(COSName.ENCODE, encode);
+		function.setItem(COSName.DOMAIN, domain);
 
-		PDFunctionType3 type3 = new PDFunctionType3(function);
-		type3.setDomainValues(domain);
-		return type3;
+		return new PDFunctionType3(state.cache.functionCache.makeUnqiue(function));
 	}
 
 	@SuppressWarnings("WeakerAccess")
 	protected COSArray buildType2Functions(Color[] colors, COSArray domain, COSArray encode, PaintApplierState state) {
-		Color prevColor = colors[0];
+		PDColor prevPdColor = state.colorMapper.mapColor(state.contentStream, colors[0]);
 
 		COSArray functions = new COSArray();
 		for (int i = 1; i < colors.length; i++) {
-			Color color = colors[i];
-			PDColor prevPdColor = state.colorMapper.mapColor(state.contentStream, prevColor);
-			PDColor pdColor = state.colorMapper.mapColor(state.contentStream, color);
-			COSArray c0 = new COSArray();
-			COSArray c1 = new COSArray();
-			for (float component : prevPdColor.getComponents())
-				c0.add(new COSFloat(component));
-			for (float component : pdColor.getComponents())
-				c1.add(new COSFloat(component));
-
-			COSDictionary type2Function = new COSDictionary();
-			type2Function.setInt(COSName.FUNCTION_TYPE, 2);
-			type2Function.setItem(COSName.C0, c0);
-			type2Function.setItem(COSName.C1, c1);
-			type2Function.setInt(COSName.N, 1);
-			type2Function.setItem(COSName.DOMAIN, domain);
-			functions.add(type2Function);
+			PDColor pdColor = state.colorMapper.mapColor(state.contentStream, colors[i]);
+			functions.add(buildType2Function(prevPdColor, pdColor, domain, state));
 
 			encode.add(new COSFloat(0));
 			encode.add(new COSFloat(1));
-			prevColor = color;
+			prevPdColor = pdColor;
 		}
 		return functions;
 	}
 
+	/**
+	 * Build a linear interpolation between the two colors. Identical functions
+	 * are shared within the document, so they are only written once.
+	 */
+	private COSDictionary buildType2Function(PDColor color0, PDColor color1, COSArray domain,
+			PaintApplierState state) {
+		COSArray c0 = new COSArray();
+		COSArray c1 = new COSArray();
+		for (float component : color0.getComponents())
+			c0.add(new COSFloat(component));
+		for (float component : color1.getComponents())
+			c1.add(new COSFloat(component));
+
+		COSDictionary type2Function = new COSDictionary();
+		type2Function.setInt(COSName.FUNCTION_TYPE, 2);
+		type2Function.setItem(COSName.C0, c0);
+		type2Function.setItem(COSName.C1, c1);
+		type2Function.setInt(COSName.N, 1);
+		type2Function.setItem(COSName.DOMAIN, domain);
+		return state.cache.functionCache.makeUnqiue(type2Function);
+	}
+
+	/**
+	 * Build a sampled (type 0) function, which gives the same colors as the
+	 * stitching function built by
+	 * {@link #buildType3Function(Color[], float[], PaintApplierState)}.
+	 */
+	private PDFunction buildSampledFunction(Color[] colors, PaintApplierState state) throws IOException {
+		float[][] components = new float[colors.length][];
+		for (int i = 0; i < colors.length; i++)
+			components[i] = state.colorMapper.mapColor(state.contentStream, colors[i]).getComponents();
+		int componentCount = components[0].length;
+		float[] bounds = stitchingBounds(colors.length);
+
+		byte[] samples = new byte[SAMPLED_FUNCTION_SIZE * componentCount];
+		int segment = 0;
+		for (int s = 0; s < SAMPLED_FUNCTION_SIZE; s++) {
+			float t = s / (float) (SAMPLED_FUNCTION_SIZE - 1);
+			while (segment < colors.length - 2 && t >= bounds[segment + 1])
+				segment++;
+			float segmentStart = bounds[segment];
+			float segmentEnd = bounds[segment + 1];
+			float f = segmentEnd > segmentStart ? (t - segmentStart) / (segmentEnd - segmentStart) : 0;
+			for (int c = 0; c < componentCount; c++) {
+				float c0 = components[segment][c];
+				float c1 = components[segment + 1][c];
+				float value = Math.max(0, Math.min(1, c0 + f * (c1 - c0)));
+				samples[s * componentCount + c] = (byte) Math.round(value * 255);
+			}
+		}
+
+		COSStream function = state.document.getDocument().createCOSStream();
+		function.setInt(COSName.FUNCTION_TYPE, 0);
+		COSArray domain = new COSArray();
+		domain.add(new COSFloat(0));
+		domain.add(new COSFloat(1));
+		function.setItem(COSName.DOMAIN, domain);
+		COSArray range = new COSArray();
+		for (int c = 0; c < componentCount; c++) {
+			range.add(new COSFloat(0));
+			range.add(new COSFloat(1));
+		}
+		function.setItem(COSName.RANGE, range);
+		COSArray size = new COSArray();
+		size.add(COSInteger.get(SAMPLED_FUNCTION_SIZE));
+		function.setItem(COSName.SIZE, size);
+		function.setInt(COSName.BITS_PER_SAMPLE, 8);
+
+		OutputStream out = function.createOutputStream(COSName.FLATE_DECODE);
+		try {
+			out.write(samples);
+		} finally {
+			out.close();
+		}
+		return new PDFunctionType0(function);
+	}
+
+	/**
+	 * @return the start of every stop color within the domain of the stitching
+	 *         function, followed by 1. This always assumes even split fractions.
+	 */
+	private static float[] stitchingBounds(int colorCount) {
+		float[] bounds = new float[colorCount];
+		for (int i = 1; i < colorCount - 1; i++)
+			bounds[i] = (1.0f / colorCount) * i;
+		bounds[colorCount - 1] = 1;
+		return bounds;
+	}
+
 	/**
 	 * Get a property value from an object using reflection
 	 *
@@ -511,23 +1142,148 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 	@SuppressWarnings({ "unchecked", "WeakerAccess" })
 	protected static <T> T getPropertyValue(Object obj, String propertyGetter) {
 		try {
-			Class c = obj.getClass();
-			while (c != null) {
-				try {
-					Method m = c.getMethod(propertyGetter, (Class<?>[]) null);
-					return (T) m.invoke(obj);
-				} catch (NoSuchMethodException ignored) {
-				}
-				c = c.getSuperclass();
+			ConcurrentMap<String, Method> getters = PROPERTY_GETTERS.get(obj.getClass());
+			Method m = getters.get(propertyGetter);
+			if (m == null) {
+				m = findPropertyGetter(obj.getClass(), propertyGetter);
+				getters.put(propertyGetter, m);
 			}
-			throw new NullPointerException("Method " + propertyGetter + " not found!");
+			return (T) m.invoke(obj);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	private static Method findPropertyGetter(Class<?> type, String propertyGetter) {
+		Class<?> c = type;
+		while (c != null) {
+			try {
+				return c.getMethod(propertyGetter, (Class<?>[]) null);
+			} catch (NoSuchMethodException ignored) {
+			}
+			c = c.getSuperclass();
+		}
+		throw new NullPointerException("Method " + propertyGetter + " not found!");
+	}
+
+	/*
+	 * The resolved property getters per class, so that we only have to look them
+	 * up once.
+	 */
+	private static final PdfBoxGraphics2DClassValue<ConcurrentMap<String, Method>> PROPERTY_GETTERS = new PdfBoxGraphics2DClassValue<ConcurrentMap<String, Method>>() {
+		@Override
+		protected ConcurrentMap<String, Method> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<String, Method>();
+		}
+	};
+
+	/**
+	 * Describes an axial or radial gradient shading by its parameters.
+	 */
+	private static final class GradientKey {
+		private final int shadingType;
+		private final Color[] colors;
+		private final float[] fractions;
+		private final float[] coords;
+		private final IPdfBoxGraphics2DColorMapper colorMapper;
+		private final int hashCode;
+
+		GradientKey(int shadingType, Color[] colors, float[] fractions, float[] coords,
+				IPdfBoxGraphics2DColorMapper colorMapper) {
+			this.shadingType = shadingType;
+			this.colors = colors.clone();
+			this.fractions = fractions.clone();
+			this.coords = coords;
+			this.colorMapper = colorMapper;
+			int hash = shadingType;
+			for (Color color : colors)
+				hash = 31 * hash + color.getRGB();
+			hash = 31 * hash + Arrays.hashCode(fractions);
+			hash = 31 * hash + Arrays.hashCode(coords);
+			hash = 31 * hash + System.identityHashCode(colorMapper);
+			this.hashCode = hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof GradientKey))
+				return false;
+			GradientKey other = (GradientKey) obj;
+			if (hashCode != other.hashCode || shadingType != other.shadingType || colorMapper != other.colorMapper
+					|| colors.length != other.colors.length)
+				return false;
+			if (!Arrays.equals(fractions, other.fractions) || !Arrays.equals(coords, other.coords))
+				return false;
+			for (int i = 0; i < colors.length; i++)
+				if (!colorEquals(colors[i], other.colors[i]))
+					return false;
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	/**
+	 * Two colors are only equal if they also map to the same PDColor, so they must
+	 * have the same class and, for CMYK colors, the same components.
+	 */
+	private static boolean colorEquals(Color a, Color b) {
+		if (a == b)
+			return true;
+		if (a.getClass() != b.getClass() || a.getRGB() != b.getRGB())
+			return false;
+		if (a instanceof PdfBoxGraphics2DCMYKColor) {
+			PdfBoxGraphics2DCMYKColor cmykA = (PdfBoxGraphics2DCMYKColor) a;
+			PdfBoxGraphics2DCMYKColor cmykB = (PdfBoxGraphics2DCMYKColor) b;
+			return cmykA.getC() == cmykB.getC() && cmykA.getM() == cmykB.getM() && cmykA.getY() == cmykB.getY()
+					&& cmykA.getK() == cmykB.getK() && cmykA.getPDColorSpace() == cmykB.getPDColorSpace();
+		}
+		return a.equals(b);
+	}
+
+	/**
+	 * Deduplicates resources by their structure. The resources are bucketed by a
+	 * structural hash of their COS tree, so we only have to compare the few
+	 * candidates with the same hash. The number of buckets is bounded, the least
+	 * recently used bucket is dropped first.
+	 */
 	private static abstract class COSResourceCacheBase<TObject extends COSObjectable> {
-		private Map<Integer, List<TObject>> states = new HashMap<Integer, List<TObject>>();
+		private final Map<Integer, List<TObject>> states = new BoundedCache<Integer, List<TObject>>(
+				MAX_CACHE_ENTRIES);
+
+		/**
+		 * Compute a hash over the COS tree, which is consistent with
+		 * {@link #equalsCOSBase(COSBase, COSBase)}.
+		 */
+		private static int hashCOSBase(COSBase item) {
+			if (item == null)
+				return 0;
+			if (item instanceof COSDictionary && !(item instanceof COSStream)) {
+				/*
+				 * The order of the entries does not matter for equality, so we must not
+				 * depend on it here either.
+				 */
+				int hash = 1;
+				for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) item).entrySet())
+					hash += 31 * entry.getKey().hashCode() ^ hashCOSBase(entry.getValue());
+				return hash;
+			}
+			if (item instanceof COSArray) {
+				COSArray array = (COSArray) item;
+				int hash = 2;
+				for (int i = 0; i < array.size(); i++)
+					hash = 31 * hash + hashCOSBase(array.getObject(i));
+				return hash;
+			}
+			if (item instanceof COSObject || item instanceof COSStream)
+				return System.identityHashCode(item);
+			return item.hashCode();
+		}
 
 		private static boolean equalsCOSDictionary(COSDictionary cosDictionary, COSDictionary cosDictionary1) {
 			if (cosDictionary.size() != cosDictionary1.size())
@@ -554,6 +1310,12 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 			if (item.equals(item2))
 				return true;
 
+			/*
+			 * We don't compare the data of streams, so they are only equal to themselves
+			 */
+			if (item instanceof COSStream || item2 instanceof COSStream)
+				return false;
+
 			if (item instanceof COSDictionary && item2 instanceof COSDictionary)
 				return equalsCOSDictionary((COSDictionary) item, (COSDictionary) item2);
 
@@ -576,10 +1338,8 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 			return true;
 		}
 
-		protected abstract int getKey(TObject obj);
-
 		TObject makeUnqiue(TObject state) {
-			int key = getKey(state);
+			int key = hashCOSBase(state.getCOSObject());
 			List<TObject> pdExtendedGraphicsStates = states.get(key);
 			if (pdExtendedGraphicsStates == null) {
 				pdExtendedGraphicsStates = new ArrayList<TObject>();
@@ -601,17 +1361,12 @@ public class PdfBoxGraphics2DPaintApplier implements IPdfBoxGraphics2DPaintAppli
 	}
 
 	private static class ExtGStateCache extends COSResourceCacheBase<PDExtendedGraphicsState> {
-		@Override
-		protected int getKey(PDExtendedGraphicsState obj) {
-			return obj.getCOSObject().size();
-		}
 	}
 
 	private static class PDShadingCache extends COSResourceCacheBase<PDShading> {
-		@Override
-		protected int getKey(PDShading obj) {
-			return obj.getCOSObject().size();
-		}
+	}
+
+	private static class FunctionCache extends COSResourceCacheBase<COSDictionary> {
 	}
 
 }
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.filter.Filter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Lossless encoding of 8 bit sRGB and gray images. TYPE_INT_RGB, TYPE_INT_ARGB,
+ * TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR images are read directly from the int[] or
+ * byte[] of the raster, all other layouts through their color model. The rows
+ * are written with PNG predictors into the Flate stream as soon as they are
+ * read, the alpha channel goes into the soft mask in the same pass. So the
+ * encoding needs no more memory than a few rows, regardless of the image size.
+ *
+ * RenderedImages are read band by band along their tile grid, so only one band
+ * of tiles is in memory at any time.
+ */
+final class PdfBoxGraphics2DPredictorImageFactory {
+	/*
+	 * Bands of untiled RenderedImages are limited to this number of pixels
+	 */
+	private static final int MAX_BAND_PIXELS = 1 << 20;
+
+	private PdfBoxGraphics2DPredictorImageFactory() {
+	}
+
+	/**
+	 * @return the encoded image, or null if the image is not a sRGB image with
+	 *         at most 8 bits per component or a 8 bit gray image.
+	 */
+	static PDImageXObject createFromImage(PDDocument document, final BufferedImage image) throws IOException {
+		final ColorModel colorModel = image.getColorModel();
+		final Raster raster = image.getRaster();
+		if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+			/*
+			 * Like LosslessFactory we embed the sRGB value of the gray
+			 */
+			return encode(document, image.getWidth(), image.getHeight(), PDDeviceGray.INSTANCE, false,
+					new RowReader() {
+						private final int[] rgbRow = new int[image.getWidth()];
+
+						@Override
+						void readRow(int y, byte[] colorRow, byte[] alphaRow) {
+							image.getRGB(0, y, rgbRow.length, 1, rgbRow, 0, rgbRow.length);
+							for (int x = 0; x < rgbRow.length; x++)
+								colorRow[x] = (byte) rgbRow[x];
+						}
+					});
+		}
+		if (isDirectlyReadable(colorModel, raster)) {
+			return encode(document, image.getWidth(), image.getHeight(), PDDeviceRGB.INSTANCE, colorModel.hasAlpha(),
+					new RowReader() {
+						@Override
+						void readRow(int y, byte[] colorRow, byte[] alphaRow) {
+							readRasterRow(raster, y, colorRow, alphaRow);
+						}
+					});
+		}
+		if (!isConvertible(colorModel))
+			return null;
+		return encode(document, image.getWidth(), image.getHeight(), PDDeviceRGB.INSTANCE, colorModel.hasAlpha(),
+				new RowReader() {
+					@Override
+					void readRow(int y, byte[] colorRow, byte[] alphaRow) {
+						readConvertedRow(raster, colorModel, y, colorRow, alphaRow);
+					}
+				});
+	}
+
+	/**
+	 * Encode the image without copying all of its data into memory.
+	 *
+	 * @return the encoded image, or null if the image is not a sRGB image with
+	 *         at most 8 bits per component.
+	 */
+	static PDImageXObject createFromRenderedImage(PDDocument document, RenderedImage image) throws IOException {
+		ColorModel colorModel = image.getColorModel();
+		if (colorModel == null || !isConvertible(colorModel))
+			return null;
+		return encode(document, image.getWidth(), image.getHeight(), PDDeviceRGB.INSTANCE, colorModel.hasAlpha(),
+				new TileBandReader(image));
+	}
+
+	/**
+	 * @return true if the colors can be converted to 8 bit sRGB without loss.
+	 */
+	private static boolean isConvertible(ColorModel colorModel) {
+		if (!colorModel.getColorSpace().isCS_sRGB())
+			return false;
+		for (int componentSize : colorModel.getComponentSize())
+			if (componentSize > 8)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Write the image row by row, so that only the current row and the compressed
+	 * data are in memory.
+	 */
+	private static PDImageXObject encode(PDDocument document, int width, int height, PDColorSpace colorSpace,
+			boolean hasAlpha, RowReader rowReader) throws IOException {
+		int colors = colorSpace.getNumberOfComponents();
+		PDImageXObject imageXObject = createImageXObject(document, width, height, colorSpace);
+		PDImageXObject mask = hasAlpha ? createImageXObject(document, width, height, PDDeviceGray.INSTANCE) : null;
+		PredictorRowWriter colorWriter = new PredictorRowWriter(imageXObject, colors, width);
+		PredictorRowWriter alphaWriter = hasAlpha ? new PredictorRowWriter(mask, 1, width) : null;
+		try {
+			byte[] colorRow = new byte[width * colors];
+			byte[] alphaRow = hasAlpha ? new byte[width] : null;
+			for (int y = 0; y < height; y++) {
+				rowReader.readRow(y, colorRow, alphaRow);
+				colorWriter.writeRow(colorRow);
+				if (hasAlpha)
+					alphaWriter.writeRow(alphaRow);
+			}
+		} finally {
+			colorWriter.close();
+			if (hasAlpha)
+				alphaWriter.close();
+		}
+		if (hasAlpha)
+			imageXObject.getCOSObject().setItem(COSName.SMASK, mask);
+		return imageXObject;
+	}
+
+	/**
+	 * @return true if {@link #readRasterRow(Raster, int, byte[], byte[])} can read
+	 *         the raster.
+	 */
+	private static boolean isDirectlyReadable(ColorModel colorModel, Raster raster) {
+		if (!colorModel.getColorSpace().isCS_sRGB() || colorModel.isAlphaPremultiplied()
+				|| colorModel.getNumColorComponents() != 3)
+			return false;
+		for (int componentSize : colorModel.getComponentSize())
+			if (componentSize != 8)
+				return false;
+		if (raster.getDataBuffer().getNumBanks() != 1
+				|| raster.getSampleModel().getNumBands() != colorModel.getNumComponents())
+			return false;
+		return isPackedInt(raster.getSampleModel(), raster.getDataBuffer())
+				|| isInterleavedByte(raster.getSampleModel(), raster.getDataBuffer());
+	}
+
+	private static boolean isPackedInt(SampleModel sampleModel, DataBuffer dataBuffer) {
+		if (!(sampleModel instanceof SinglePixelPackedSampleModel) || !(dataBuffer instanceof DataBufferInt))
+			return false;
+		SinglePixelPackedSampleModel packedSampleModel = (SinglePixelPackedSampleModel) sampleModel;
+		int[] masks = packedSampleModel.getBitMasks();
+		int[] offsets = packedSampleModel.getBitOffsets();
+		for (int band = 0; band < masks.length; band++)
+			if (masks[band] != 0xFF << offsets[band])
+				return false;
+		return true;
+	}
+
+	private static boolean isInterleavedByte(SampleModel sampleModel, DataBuffer dataBuffer) {
+		if (!(sampleModel instanceof ComponentSampleModel) || !(dataBuffer instanceof DataBufferByte))
+			return false;
+		for (int bank : ((ComponentSampleModel) sampleModel).getBankIndices())
+			if (bank != 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Read one row as RGB bytes and, if the image has alpha, the alpha bytes. The
+	 * bands are in the order of the color model, i.e. R, G, B and A.
+	 *
+	 * @param y
+	 *            the row, relative to the top of the raster
+	 */
+	private static void readRasterRow(Raster raster, int y, byte[] colorRow, byte[] alphaRow) {
+		SampleModel sampleModel = raster.getSampleModel();
+		DataBuffer dataBuffer = raster.getDataBuffer();
+		int sampleX = raster.getMinX() - raster.getSampleModelTranslateX();
+		int sampleY = raster.getMinY() + y - raster.getSampleModelTranslateY();
+		int width = raster.getWidth();
+		if (sampleModel instanceof SinglePixelPackedSampleModel) {
+			SinglePixelPackedSampleModel packedSampleModel = (SinglePixelPackedSampleModel) sampleModel;
+			int[] offsets = packedSampleModel.getBitOffsets();
+			int shiftR = offsets[0];
+			int shiftG = offsets[1];
+			int shiftB = offsets[2];
+			int[] data = ((DataBufferInt) dataBuffer).getData();
+			int pos = dataBuffer.getOffset() + packedSampleModel.getOffset(sampleX, sampleY);
+			for (int x = 0, i = 0; x < width; x++, pos++) {
+				int pixel = data[pos];
+				colorRow[i++] = (byte) (pixel >>> shiftR);
+				colorRow[i++] = (byte) (pixel >>> shiftG);
+				colorRow[i++] = (byte) (pixel >>> shiftB);
+			}
+			if (alphaRow != null) {
+				int shiftA = offsets[3];
+				pos = dataBuffer.getOffset() + packedSampleModel.getOffset(sampleX, sampleY);
+				for (int x = 0; x < width; x++, pos++)
+					alphaRow[x] = (byte) (data[pos] >>> shiftA);
+			}
+		} else {
+			ComponentSampleModel componentSampleModel = (ComponentSampleModel) sampleModel;
+			int[] bandOffsets = componentSampleModel.getBandOffsets();
+			int pixelStride = componentSampleModel.getPixelStride();
+			byte[] data = ((DataBufferByte) dataBuffer).getData();
+			int rowStart = dataBuffer.getOffset() + sampleY * componentSampleModel.getScanlineStride()
+					+ sampleX * pixelStride;
+			int posR = rowStart + bandOffsets[0];
+			int posG = rowStart + bandOffsets[1];
+			int posB = rowStart + bandOffsets[2];
+			for (int x = 0, i = 0; x < width; x++) {
+				int pos = x * pixelStride;
+				colorRow[i++] = data[posR + pos];
+				colorRow[i++] = data[posG + pos];
+				colorRow[i++] = data[posB + pos];
+			}
+			if (alphaRow != null) {
+				int posA = rowStart + bandOffsets[3];
+				for (int x = 0; x < width; x++)
+					alphaRow[x] = data[posA + x * pixelStride];
+			}
+		}
+	}
+
+	/**
+	 * Read one row of any raster through the color model. This is much slower
+	 * than {@link #readRasterRow(Raster, int, byte[], byte[])}.
+	 */
+	private static void readConvertedRow(Raster raster, ColorModel colorModel, int y, byte[] colorRow,
+			byte[] alphaRow) {
+		int minX = raster.getMinX();
+		int rowY = raster.getMinY() + y;
+		Object pixel = null;
+		for (int x = 0, i = 0; x < colorRow.length / 3; x++) {
+			pixel = raster.getDataElements(minX + x, rowY, pixel);
+			int argb = colorModel.getRGB(pixel);
+			colorRow[i++] = (byte) (argb >> 16);
+			colorRow[i++] = (byte) (argb >> 8);
+			colorRow[i++] = (byte) argb;
+			if (alphaRow != null)
+				alphaRow[x] = (byte) (argb >>> 24);
+		}
+	}
+
+	private static abstract class RowReader {
+		/**
+		 * @param y
+		 *            the row, starting with 0 for the top row of the image
+		 */
+		abstract void readRow(int y, byte[] colorRow, byte[] alphaRow);
+	}
+
+	/**
+	 * Fetches the data of a RenderedImage one band of tiles at a time.
+	 */
+	private static final class TileBandReader extends RowReader {
+		private final RenderedImage image;
+		private final ColorModel colorModel;
+		private Raster band;
+		private boolean directlyReadable;
+
+		TileBandReader(RenderedImage image) {
+			this.image = image;
+			this.colorModel = image.getColorModel();
+		}
+
+		@Override
+		void readRow(int y, byte[] colorRow, byte[] alphaRow) {
+			int imageY = image.getMinY() + y;
+			if (band == null || imageY >= band.getMinY() + band.getHeight()) {
+				int tileHeight = image.getTileHeight();
+				int tileEnd = imageY - (imageY - image.getTileGridYOffset()) % tileHeight + tileHeight;
+				int bandHeight = Math.min(tileEnd - imageY, Math.max(1, MAX_BAND_PIXELS / image.getWidth()));
+				bandHeight = Math.min(bandHeight, image.getMinY() + image.getHeight() - imageY);
+				band = image.getData(new Rectangle(image.getMinX(), imageY, image.getWidth(), bandHeight));
+				directlyReadable = isDirectlyReadable(colorModel, band);
+			}
+			if (directlyReadable)
+				readRasterRow(band, imageY - band.getMinY(), colorRow, alphaRow);
+			else
+				readConvertedRow(band, colorModel, imageY - band.getMinY(), colorRow, alphaRow);
+		}
+	}
+
+	private static PDImageXObject createImageXObject(PDDocument document, int width, int height,
+			PDColorSpace colorSpace) throws IOException {
+		PDImageXObject imageXObject = new PDImageXObject(new PDStream(document), null);
+		imageXObject.getCOSObject().setItem(COSName.FILTER, COSName.FLATE_DECODE);
+		imageXObject.setWidth(width);
+		imageXObject.setHeight(height);
+		imageXObject.setBitsPerComponent(8);
+		imageXObject.setColorSpace(colorSpace);
+
+		COSDictionary decodeParms = new COSDictionary();
+		decodeParms.setItem(COSName.BITS_PER_COMPONENT, COSInteger.get(8));
+		decodeParms.setItem(COSName.PREDICTOR, COSInteger.get(15));
+		decodeParms.setItem(COSName.COLUMNS, COSInteger.get(width));
+		decodeParms.setItem(COSName.COLORS, COSInteger.get(colorSpace.getNumberOfComponents()));
+		imageXObject.getCOSObject().setItem(COSName.DECODE_PARMS, decodeParms);
+		return imageXObject;
+	}
+
+	/**
+	 * Writes rows with the PNG filter which most likely compresses best, directly
+	 * into the already deflated stream of the image.
+	 */
+	private static final class PredictorRowWriter {
+		private final Deflater deflater;
+		private final OutputStream out;
+		private final int bytesPerPixel;
+		private final byte[] previousRow;
+		private final byte[][] filteredRows = new byte[5][];
+
+		PredictorRowWriter(PDImageXObject imageXObject, int bytesPerPixel, int width) throws IOException {
+			this.bytesPerPixel = bytesPerPixel;
+			this.previousRow = new byte[width * bytesPerPixel];
+			for (int filter = 0; filter < filteredRows.length; filter++) {
+				filteredRows[filter] = new byte[width * bytesPerPixel + 1];
+				filteredRows[filter][0] = (byte) filter;
+			}
+			deflater = new Deflater(Filter.getCompressionLevel());
+			out = new DeflaterOutputStream(imageXObject.getCOSObject().createRawOutputStream(), deflater, 32768);
+		}
+
+		void writeRow(byte[] row) throws IOException {
+			byte[] none = filteredRows[0];
+			byte[] sub = filteredRows[1];
+			byte[] up = filteredRows[2];
+			byte[] average = filteredRows[3];
+			byte[] paeth = filteredRows[4];
+			long sumNone = 0, sumSub = 0, sumUp = 0, sumAverage = 0, sumPaeth = 0;
+			for (int i = 0; i < row.length; i++) {
+				int x = row[i] & 0xFF;
+				int a = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+				int b = previousRow[i] & 0xFF;
+				int c = i >= bytesPerPixel ? previousRow[i - bytesPerPixel] & 0xFF : 0;
+
+				int p = a + b - c;
+				int pa = Math.abs(p - a);
+				int pb = Math.abs(p - b);
+				int pc = Math.abs(p - c);
+				int predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+
+				byte vNone = (byte) x;
+				byte vSub = (byte) (x - a);
+				byte vUp = (byte) (x - b);
+				byte vAverage = (byte) (x - ((a + b) >> 1));
+				byte vPaeth = (byte) (x - predictor);
+				none[i + 1] = vNone;
+				sub[i + 1] = vSub;
+				up[i + 1] = vUp;
+				average[i + 1] = vAverage;
+				paeth[i + 1] = vPaeth;
+
+				/*
+				 * https://www.w3.org/TR/PNG-Encoders.html#E.Filter-selection
+				 */
+				sumNone += Math.abs(vNone);
+				sumSub += Math.abs(vSub);
+				sumUp += Math.abs(vUp);
+				sumAverage += Math.abs(vAverage);
+				sumPaeth += Math.abs(vPaeth);
+			}
+			byte[] best = none;
+			long bestSum = sumNone;
+			if (sumSub < bestSum) {
+				best = sub;
+				bestSum = sumSub;
+			}
+			if (sumUp < bestSum) {
+				best = up;
+				bestSum = sumUp;
+			}
+			if (sumAverage < bestSum) {
+				best = average;
+				bestSum = sumAverage;
+			}
+			if (sumPaeth < bestSum)
+				best = paeth;
+			out.write(best);
+			System.arraycopy(row, 0, previousRow, 0, row.length);
+		}
+
+		void close() throws IOException {
+			try {
+				out.close();
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Emmeran Seehuber
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.rototor.pdfbox.graphics2d;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Hands out the same sub image object for the same region of an image, so that
+ * the image encoder can reuse the encoded region when it is drawn again. The
+ * sub images share the pixel data with the source image and are kept as long
+ * as the source image lives. {@link PdfBoxGraphics2DLosslessImageEncoder}
+ * keeps one instance per document, so this also works across pages.
+ *
+ * Objects of this class are not thread safe.
+ */
+final class PdfBoxGraphics2DSubImageCache {
+	private final Map<BufferedImage, Map<Rectangle, BufferedImage>> subImages = new WeakHashMap<BufferedImage, Map<Rectangle, BufferedImage>>();
+
+	/**
+	 * @param region
+	 *            the region, which must be within the bounds of the image
+	 * @return the sub image of the region
+	 */
+	BufferedImage getSubImage(BufferedImage image, Rectangle region) {
+		Map<Rectangle, BufferedImage> regions = subImages.get(image);
+		if (regions == null) {
+			regions = new HashMap<Rectangle, BufferedImage>();
+			subImages.put(image, regions);
+		}
+		BufferedImage subImage = regions.get(region);
+		if (subImage == null) {
+			subImage = image.getSubimage(region.x, region.y, region.width, region.height);
+			regions.put(new Rectangle(region), subImage);
+		}
+		return subImage;
+	}
+}
@@ -0,0 +1,39 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class PdfBoxGraphics2DAdaptiveImageEncoderTest {
+
+	@Test
+	public void testPhotosAreEncodedLossy() throws IOException {
+		PDDocument document = new PDDocument();
+		try {
+			PdfBoxGraphics2DAdaptiveImageEncoder imageEncoder = new PdfBoxGraphics2DAdaptiveImageEncoder();
+			assertEquals(COSName.DCT_DECODE, encode(imageEncoder, document, "Rose-ProPhoto.jpg"));
+			assertEquals(COSName.DCT_DECODE, encode(imageEncoder, document, "Italy-P3.jpg"));
+			assertEquals(COSName.FLATE_DECODE, encode(imageEncoder, document, "pixeltest.png"));
+			assertEquals(COSName.FLATE_DECODE, encode(imageEncoder, document, "16bit-image1.png"));
+		} finally {
+			document.close();
+		}
+	}
+
+	/**
+	 * @return the filter of the encoded image
+	 */
+	private static COSName encode(IPdfBoxGraphics2DImageEncoder imageEncoder, PDDocument document, String name)
+			throws IOException {
+		BufferedImage image = ImageIO.read(PdfBoxGraphics2DAdaptiveImageEncoderTest.class.getResourceAsStream(name));
+		PDImageXObject imageXObject = imageEncoder.encodeImage(document, null, image);
+		return (COSName) imageXObject.getCOSObject().getDictionaryObject(COSName.FILTER);
+	}
+}
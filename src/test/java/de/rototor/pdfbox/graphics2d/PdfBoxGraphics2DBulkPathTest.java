@@ -0,0 +1,73 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PdfBoxGraphics2DBulkPathTest {
+
+	@Test
+	public void testSameCoordinatesAsPathIterator() {
+		AffineTransform scaled = AffineTransform.getTranslateInstance(0, 400);
+		scaled.scale(1.5, -1.5);
+		AffineTransform rotated = new AffineTransform(scaled);
+		rotated.rotate(0.3);
+
+		int[] xpoints = { 80, 129, 0, 160, 31 };
+		int[] ypoints = { 0, 152, 58, 58, 152 };
+		for (AffineTransform tf : new AffineTransform[] { new AffineTransform(), scaled, rotated }) {
+			assertSameCoordinates(new Polygon(xpoints, ypoints, 5), tf, PathIterator.SEG_CLOSE);
+			assertSameCoordinates(new PdfBoxGraphics2DBulkPath.Polyline(xpoints, ypoints, 5), tf, -1);
+		}
+	}
+
+	@Test
+	public void testOnlyPolygonsSupported() {
+		assertTrue(PdfBoxGraphics2DBulkPath.isSupported(new Polygon(new int[] { 0, 1 }, new int[] { 0, 1 }, 2)));
+		assertFalse(PdfBoxGraphics2DBulkPath.isSupported(new Polygon()));
+		assertFalse(PdfBoxGraphics2DBulkPath.isSupported(new Path2D.Double(new Rectangle(0, 0, 1, 1))));
+	}
+
+	@Test
+	public void testHugeBufferNotRetained() {
+		PdfBoxGraphics2DBulkPath bulkPath = new PdfBoxGraphics2DBulkPath();
+		int n = 1000000;
+		bulkPath.load(new Polygon(new int[n], new int[n], n), new AffineTransform());
+		assertEquals(n, bulkPath.getPointCount());
+		assertTrue(bulkPath.getCoords().length >= n * 2);
+		assertTrue(bulkPath.getRetainedCapacity() < n * 2);
+
+		bulkPath.load(new Polygon(new int[1000], new int[1000], 1000), new AffineTransform());
+		assertEquals(2000, bulkPath.getRetainedCapacity());
+	}
+
+	private void assertSameCoordinates(Polygon polygon, AffineTransform tf, int lastSegment) {
+		PdfBoxGraphics2DBulkPath bulkPath = new PdfBoxGraphics2DBulkPath();
+		bulkPath.load(polygon, tf);
+
+		PathIterator pi = polygon.getPathIterator(tf);
+		float[] expected = new float[6];
+		int point = 0;
+		int type = -1;
+		while (!pi.isDone()) {
+			type = pi.currentSegment(expected);
+			if (type != PathIterator.SEG_CLOSE) {
+				assertEquals(point == 0 ? PathIterator.SEG_MOVETO : PathIterator.SEG_LINETO, type);
+				assertEquals(expected[0], bulkPath.getCoords()[point * 2], 0.001f);
+				assertEquals(expected[1], bulkPath.getCoords()[point * 2 + 1], 0.001f);
+				point++;
+			}
+			pi.next();
+		}
+		assertEquals(lastSegment, type == PathIterator.SEG_CLOSE ? type : -1);
+		assertEquals(point, bulkPath.getPointCount());
+		assertEquals(PathIterator.WIND_EVEN_ODD, pi.getWindingRule());
+	}
+}
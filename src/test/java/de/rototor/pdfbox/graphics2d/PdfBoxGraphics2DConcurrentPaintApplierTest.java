@@ -0,0 +1,108 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.junit.Test;
+
+import java.awt.*;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PdfBoxGraphics2DConcurrentPaintApplierTest {
+
+	@Test
+	public void testSharedBetweenThreads() throws Exception {
+		final PdfBoxGraphics2DConcurrentPaintApplier paintApplier = new PdfBoxGraphics2DConcurrentPaintApplier();
+		final PdfBoxGraphics2DColorMapper colorMapper = new PdfBoxGraphics2DColorMapper();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			/*
+			 * Every thread must write exactly what a single thread with its own applier
+			 * writes.
+			 */
+			List<String> expected = renderDocument(new PdfBoxGraphics2DPaintApplier(),
+					new PdfBoxGraphics2DColorMapper());
+			List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+			for (int i = 0; i < 16; i++) {
+				results.add(executor.submit(new Callable<List<String>>() {
+					@Override
+					public List<String> call() throws Exception {
+						return renderDocument(paintApplier, colorMapper);
+					}
+				}));
+			}
+			for (Future<List<String>> result : results)
+				assertEquals(expected, result.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return the content stream and the number of resources of each category of
+	 *         every page
+	 */
+	private List<String> renderDocument(IPdfBoxGraphics2DPaintApplier paintApplier,
+			IPdfBoxGraphics2DColorMapper colorMapper) throws Exception {
+		List<String> pages = new ArrayList<String>();
+		PDDocument document = new PDDocument();
+		try {
+			for (int p = 0; p < 3; p++) {
+				PDPage page = new PDPage();
+				document.addPage(page);
+				PdfBoxGraphics2D gfx = new PdfBoxGraphics2D(document, 400, 400);
+				gfx.setPaintApplier(paintApplier);
+				gfx.setColorMapper(colorMapper);
+				GradientPaint gradientPaint = new GradientPaint(0, 0, Color.blue, 100, 100, Color.red);
+				for (int i = 0; i < 50; i++) {
+					gfx.setPaint(gradientPaint);
+					gfx.fillRect(i, i, 100, 100);
+					gfx.setPaint(new LinearGradientPaint(0, 0, 400, 0, new float[] { 0f, 0.5f, 1f },
+							new Color[] { Color.green, new Color(0, 0, i * 5, 128), Color.yellow }));
+					gfx.fillOval(i * 2, 10, 50, 50);
+					gfx.setColor(new Color(i * 5, 0, 0, 200));
+					gfx.drawLine(0, i, 400, i);
+				}
+				gfx.dispose();
+
+				PDFormXObject form = gfx.getXFormObject();
+				StringBuilder description = new StringBuilder();
+				InputStream contents = form.getContentStream().createInputStream();
+				try {
+					description.append(new String(IOUtils.toByteArray(contents), "ISO-8859-1"));
+				} finally {
+					contents.close();
+				}
+				COSDictionary resources = form.getResources().getCOSObject();
+				for (COSName category : resources.keySet())
+					description.append('\n').append(category.getName()).append(' ')
+							.append(resources.getCOSDictionary(category).size());
+				pages.add(description.toString());
+
+				PDPageContentStream contentStream = new PDPageContentStream(document, page);
+				contentStream.drawForm(gfx.getXFormObject());
+				contentStream.close();
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			document.save(out);
+			assertTrue(out.size() > 0);
+			return pages;
+		} finally {
+			document.close();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDICCBased;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PdfBoxGraphics2DEncodedImageTest {
+
+	@Test
+	public void testJPEGPassthrough() throws IOException {
+		byte[] jpeg = readResource("Rose-ProPhoto.jpg");
+		PdfBoxGraphics2DEncodedImage image = PdfBoxGraphics2DEncodedImage.fromBytes(jpeg);
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(jpeg));
+		assertEquals(decoded.getWidth(), image.getWidth(null));
+		assertEquals(decoded.getHeight(), image.getHeight(null));
+
+		PDDocument document = new PDDocument();
+		try {
+			PDImageXObject imageXObject = new PdfBoxGraphics2DLosslessImageEncoder().encodeImage(document, null,
+					image);
+			assertEquals(COSName.DCT_DECODE, imageXObject.getCOSObject().getItem(COSName.FILTER));
+			assertArrayEquals(jpeg, IOUtils.toByteArray(imageXObject.getCOSObject().createRawInputStream()));
+			assertTrue(imageXObject.getColorSpace() instanceof PDICCBased);
+		} finally {
+			document.close();
+		}
+	}
+
+	@Test
+	public void testPNGPassthrough() throws IOException {
+		PDDocument document = new PDDocument();
+		try {
+			PdfBoxGraphics2DLosslessImageEncoder imageEncoder = new PdfBoxGraphics2DLosslessImageEncoder();
+			for (String name : new String[] { "colortest.png", "16bit-image2.png" }) {
+				byte[] png = readResource(name);
+				PDImageXObject imageXObject = imageEncoder.encodeImage(document, null,
+						PdfBoxGraphics2DEncodedImage.fromBytes(png));
+				assertEquals(COSName.FLATE_DECODE, imageXObject.getCOSObject().getItem(COSName.FILTER));
+				assertEquals(15, imageXObject.getCOSObject().getCOSDictionary(COSName.DECODE_PARMS)
+						.getInt(COSName.PREDICTOR));
+				/*
+				 * The compressed data must be taken over as it is
+				 */
+				assertArrayEquals(name, readImageData(png),
+						IOUtils.toByteArray(imageXObject.getCOSObject().createRawInputStream()));
+				BufferedImage expected = ImageIO.read(new ByteArrayInputStream(png));
+				BufferedImage actual = imageXObject.getImage();
+				for (int y = 0; y < expected.getHeight(); y++)
+					for (int x = 0; x < expected.getWidth(); x++)
+						if (expected.getRGB(x, y) >>> 24 != 0)
+							assertEquals(name, expected.getRGB(x, y) & 0xFFFFFF, actual.getRGB(x, y) & 0xFFFFFF);
+			}
+			/*
+			 * The PNG with alpha channel must be decoded to split off the soft mask
+			 */
+			PDImageXObject withAlpha = imageEncoder.encodeImage(document, null,
+					PdfBoxGraphics2DEncodedImage.fromBytes(readResource("pixeltest.png")));
+			assertNotNull(withAlpha.getCOSObject().getItem(COSName.SMASK));
+		} finally {
+			document.close();
+		}
+	}
+
+	/**
+	 * @return the content of all IDAT chunks of the PNG
+	 */
+	private static byte[] readImageData(byte[] png) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(png));
+		ByteArrayOutputStream imageData = new ByteArrayOutputStream();
+		in.skipBytes(8);
+		while (in.available() > 0) {
+			int length = in.readInt();
+			byte[] type = new byte[4];
+			in.readFully(type);
+			byte[] data = new byte[length];
+			in.readFully(data);
+			in.readInt();
+			if (new String(type, "US-ASCII").equals("IDAT"))
+				imageData.write(data);
+		}
+		return imageData.toByteArray();
+	}
+
+	private static byte[] readResource(String name) throws IOException {
+		InputStream inputStream = PdfBoxGraphics2DEncodedImageTest.class.getResourceAsStream(name);
+		try {
+			return IOUtils.toByteArray(inputStream);
+		} finally {
+			inputStream.close();
+		}
+	}
+}
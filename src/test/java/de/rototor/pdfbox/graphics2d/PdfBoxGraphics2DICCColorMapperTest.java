@@ -0,0 +1,67 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceCMYK;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class PdfBoxGraphics2DICCColorMapperTest {
+
+	@Test
+	public void testLookupTableMatchesColorManagement() throws Exception {
+		ICC_Profile profile = loadProfile();
+		PdfBoxGraphics2DICCColorMapper colorMapper = new PdfBoxGraphics2DICCColorMapper(profile);
+
+		Random random = new Random(4711);
+		for (int i = 0; i < 200; i++) {
+			Color color = new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+			PDColor pdColor = colorMapper.mapColor(null, color);
+			assertSame(PDDeviceCMYK.INSTANCE, pdColor.getColorSpace());
+			float[] expected = convert(profile, color);
+			float[] actual = pdColor.getComponents();
+			for (int c = 0; c < 4; c++)
+				assertEquals(color.toString(), expected[c], actual[c], 0.03f);
+		}
+		Color color = new Color(12, 34, 56);
+		assertSame(colorMapper.mapColor(null, color), colorMapper.mapColor(null, new Color(12, 34, 56, 128)));
+
+		PdfBoxGraphics2DCMYKColor cmykColor = new PdfBoxGraphics2DCMYKColor(10, 20, 30, 40);
+		assertSame(cmykColor.toPDColor(), colorMapper.mapColor(null, cmykColor));
+	}
+
+	private static ICC_Profile loadProfile() throws Exception {
+		InputStream in = PDDeviceCMYK.class
+				.getResourceAsStream("/org/apache/pdfbox/resources/icc/ISOcoated_v2_300_bas.icc");
+		try {
+			return ICC_Profile.getInstance(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static float[] convert(ICC_Profile profile, Color color) {
+		BufferedImage rgbImage = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+		rgbImage.setRGB(0, 0, color.getRGB());
+		ComponentColorModel colorModel = new ComponentColorModel(new ICC_ColorSpace(profile), false, false,
+				Transparency.OPAQUE, DataBuffer.TYPE_USHORT);
+		WritableRaster raster = colorModel.createCompatibleWritableRaster(1, 1);
+		new ColorConvertOp(null).filter(rgbImage, new BufferedImage(colorModel, raster, false, null));
+		float[] cmyk = new float[4];
+		for (int c = 0; c < 4; c++)
+			cmyk[c] = raster.getSample(0, 0, c) / 65535f;
+		return cmyk;
+	}
+}
@@ -0,0 +1,460 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PdfBoxGraphics2DLosslessImageEncoderTest {
+
+	@Test
+	public void testDeduplicateByContent() throws IOException {
+		PDDocument document = new PDDocument();
+		try {
+			PdfBoxGraphics2DLosslessImageEncoder imageEncoder = new PdfBoxGraphics2DLosslessImageEncoder();
+			imageEncoder.setDeduplicateByContent(true);
+
+			PDImageXObject first = imageEncoder.encodeImage(document, null, loadImage());
+			PDImageXObject second = imageEncoder.encodeImage(document, null, loadImage());
+			assertSame(first, second);
+
+			BufferedImage changed = loadImage();
+			changed.setRGB(3, 4, changed.getRGB(3, 4) ^ 0x00010101);
+			assertNotSame(first, imageEncoder.encodeImage(document, null, changed));
+		} finally {
+			document.close();
+		}
+	}
+
+	@Test
+	public void testNoSoftMaskForOpaqueImages() throws IOException {
+		PDDocument document = new PDDocument();
+		try {
+			PdfBoxGraphics2DLosslessImageEncoder imageEncoder = new PdfBoxGraphics2DLosslessImageEncoder();
+			for (int type : new int[] { BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_4BYTE_ABGR }) {
+				BufferedImage image = new BufferedImage(20, 10, type);
+				Graphics2D g = image.createGraphics();
+				g.setPaint(new GradientPaint(0, 0, Color.red, 20, 10, Color.blue));
+				g.fillRect(0, 0, 20, 10);
+				g.dispose();
+				PDImageXObject opaque = imageEncoder.encodeImage(document, null, image);
+				assertNull(opaque.getCOSObject().getItem(COSName.SMASK));
+				assertEquals(image.getRGB(7, 3), opaque.getImage().getRGB(7, 3));
+
+				image.setRGB(5, 5, 0x80ff0000);
+				PDImageXObject translucent = imageEncoder.encodeImage(document, null, copy(image));
+				assertNotNull(translucent.getCOSObject().getItem(COSName.SMASK));
+			}
+		} finally {
+			document.close();
+		}
+	}
+
+	@Test
+	public void testIndexedColors() throws IOException {
+		PDDocument document = new PDDocument();
+		try {
+			PdfBoxGraphics2DLosslessImageEncoder imageEncoder = new PdfBoxGraphics2DLosslessImageEncoder();
+			BufferedImage image = new BufferedImage(21, 9, BufferedImage.TYPE_INT_ARGB);
+			Color[] colors = { Color.red, Color.green, Color.blue, Color.orange, new Color(0x40ffffff, true) };
+			for (int y = 0; y < image.getHeight(); y++)
+				for (int x = 0; x < image.getWidth(); x++)
+					image.setRGB(x, y, colors[(x + y) % colors.length].getRGB());
+			PDImageXObject indexed = imageEncoder.encodeImage(document, null, image);
+			assertEquals(COSName.INDEXED.getName(), indexed.getColorSpace().getName());
+			assertEquals(4, indexed.getBitsPerComponent());
+			assertNotNull(indexed.getCOSObject().getItem(COSName.SMASK));
+			BufferedImage decoded = indexed.getImage();
+			for (int y = 0; y < image.getHeight(); y++)
+				for (int x = 0; x < image.getWidth(); x++)
+					assertEquals(image.getRGB(x, y) & 0xFFFFFF, decoded.getRGB(x, y) & 0xFFFFFF);
+
+			BufferedImage blackAndWhite = new BufferedImage(13, 5, BufferedImage.TYPE_INT_RGB);
+			blackAndWhite.setRGB(3, 2, Color.white.getRGB());
+			blackAndWhite.setRGB(12, 4, Color.white.getRGB());
+			imageEncoder.setCCITTForBlackAndWhite(true);
+			PDImageXObject bilevel = imageEncoder.encodeImage(document, null, blackAndWhite);
+			assertEquals(COSName.DEVICEGRAY.getName(), bilevel.getColorSpace().getName());
+			assertEquals(1, bilevel.getBitsPerComponent());
+			assertEquals(COSName.CCITTFAX_DECODE, bilevel.getCOSObject().getItem(COSName.FILTER));
+			BufferedImage decodedBilevel = bilevel.getImage();
+			for (int y = 0; y < blackAndWhite.getHeight(); y++)
+				for (int x = 0; x < blackAndWhite.getWidth(); x++)
+					assertEquals(blackAndWhite.getRGB(x, y), decodedBilevel.getRGB(x, y));
+		} finally {
+			document.close();
+		}
+	}
+
+	@Test
+	public void testRasterDirectEncoding() throws IOException {
+		PDDocument document = new PDDocument();
+		try {
+			PdfBoxGraphics2DLosslessImageEncoder imageEncoder = new PdfBoxGraphics2DLosslessImageEncoder();
+			for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+					BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_INT_ARGB_PRE,
+					BufferedImage.TYPE_USHORT_565_RGB }) {
+				BufferedImage image = new BufferedImage(40, 30, type);
+				for (int y = 0; y < image.getHeight(); y++)
+					for (int x = 0; x < image.getWidth(); x++)
+						image.setRGB(x, y, (x * 6) << 16 | (y * 8) << 8 | (x * y) & 0xFF | (x + y * 7) << 24);
+				BufferedImage subImage = image.getSubimage(5, 3, 30, 20);
+				for (BufferedImage source : new BufferedImage[] { image, subImage }) {
+					PDImageXObject imageXObject = imageEncoder.encodeImage(document, null, source);
+					assertEquals(COSName.DEVICERGB.getName(), imageXObject.getColorSpace().getName());
+					assertEquals(source.getColorModel().hasAlpha(),
+							imageXObject.getCOSObject().getItem(COSName.SMASK) != null);
+					BufferedImage decoded = imageXObject.getImage();
+					for (int y = 0; y < source.getHeight(); y++)
+						for (int x = 0; x < source.getWidth(); x++)
+							assertEquals(source.getRGB(x, y) & 0xFFFFFF, decoded.getRGB(x, y) & 0xFFFFFF);
+					if (source.getColorModel().hasAlpha()) {
+						BufferedImage mask = imageXObject.getSoftMask().getImage();
+						for (int y = 0; y < source.getHeight(); y++)
+							for (int x = 0; x < source.getWidth(); x++)
+								assertEquals(source.getRGB(x, y) >>> 24, mask.getRaster().getSample(x, y, 0));
+					}
+				}
+			}
+
+			BufferedImage gray = new BufferedImage(40, 30, BufferedImage.TYPE_BYTE_GRAY);
+			for (int y = 0; y < gray.getHeight(); y++)
+				for (int x = 0; x < gray.getWidth(); x++)
+					gray.getRaster().setSample(x, y, 0, x * y);
+			PDImageXObject imageXObject = imageEncoder.encodeImage(document, null, gray);
+			assertEquals(COSName.DEVICEGRAY.getName(), imageXObject.getColorSpace().getName());
+			assertEquals(15, imageXObject.getCOSObject().getCOSDictionary(COSName.DECODE_PARMS)
+					.getInt(COSName.PREDICTOR));
+			BufferedImage decoded = imageXObject.getImage();
+			for (int y = 0; y < gray.getHeight(); y++)
+				for (int x = 0; x < gray.getWidth(); x++)
+					assertEquals(gray.getRGB(x, y) & 0xFF, decoded.getRaster().getSample(x, y, 0));
+		} finally {
+			document.close();
+		}
+	}
+
+	@Test
+	public void testDownsampledImageSharedByPages() throws IOException {
+		BufferedImage image = new BufferedImage(400, 400, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 400; y++)
+			for (int x = 0; x < 400; x++)
+				image.setRGB(x, y, x << 16 | y << 8 | (x ^ y) & 0xFF);
+
+		PDDocument document = new PDDocument();
+		try {
+			PdfBoxGraphics2DLosslessImageEncoder imageEncoder = new PdfBoxGraphics2DLosslessImageEncoder();
+			List<COSBase> imageXObjects = new ArrayList<COSBase>();
+			for (int i = 0; i < 2; i++) {
+				PdfBoxGraphics2D gfx = new PdfBoxGraphics2D(document, 200, 200);
+				gfx.setImageEncoder(imageEncoder);
+				gfx.setMaxImageResolution(72);
+				gfx.drawImage(image, 0, 0, 100, 100, null);
+				gfx.dispose();
+				imageXObjects.add(singleImageXObject(gfx.getXFormObject()));
+			}
+			assertEquals(100, ((COSDictionary) imageXObjects.get(0)).getInt(COSName.WIDTH));
+			assertSame(imageXObjects.get(0), imageXObjects.get(1));
+		} finally {
+			document.close();
+		}
+	}
+
+	@Test
+	public void testSubImageSharedByPages() throws IOException {
+		BufferedImage atlas = new BufferedImage(400, 100, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 100; y++)
+			for (int x = 0; x < 400; x++)
+				atlas.setRGB(x, y, x << 16 | y << 8 | (x ^ y) & 0xFF);
+
+		PDDocument document = new PDDocument();
+		try {
+			PdfBoxGraphics2DLosslessImageEncoder imageEncoder = new PdfBoxGraphics2DLosslessImageEncoder();
+			List<COSBase> imageXObjects = new ArrayList<COSBase>();
+			for (int i = 0; i < 2; i++) {
+				PdfBoxGraphics2D gfx = new PdfBoxGraphics2D(document, 200, 200);
+				gfx.setImageEncoder(imageEncoder);
+				gfx.setExtractSubImages(true);
+				gfx.drawImage(atlas, 0, 0, 40, 40, 100, 20, 140, 60, null);
+				gfx.dispose();
+				imageXObjects.add(singleImageXObject(gfx.getXFormObject()));
+			}
+			assertEquals(42, ((COSDictionary) imageXObjects.get(0)).getInt(COSName.WIDTH));
+			assertSame(imageXObjects.get(0), imageXObjects.get(1));
+		} finally {
+			document.close();
+		}
+	}
+
+	private static COSBase singleImageXObject(PDFormXObject form) {
+		COSDictionary xObjects = form.getResources().getCOSObject().getCOSDictionary(COSName.XOBJECT);
+		assertEquals(1, xObjects.size());
+		return xObjects.getDictionaryObject(xObjects.keySet().iterator().next());
+	}
+
+	@Test
+	public void testExecutor() throws Exception {
+		PDDocument document = new PDDocument();
+		try {
+			final List<Runnable> jobs = new ArrayList<Runnable>();
+			PdfBoxGraphics2DLosslessImageEncoder imageEncoder = new PdfBoxGraphics2DLosslessImageEncoder();
+			imageEncoder.setExecutor(new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					jobs.add(command);
+				}
+			});
+
+			BufferedImage translucent = new BufferedImage(40, 30, BufferedImage.TYPE_INT_ARGB);
+			BufferedImage fewColors = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < 30; y++) {
+				for (int x = 0; x < 40; x++) {
+					translucent.setRGB(x, y, (x * 6) << 16 | (y * 8) << 8 | (x * y) & 0xFF | (x + y * 7) << 24);
+					fewColors.setRGB(x, y, (x / 10) * 0x402010);
+				}
+			}
+
+			PdfBoxGraphics2D gfx = new PdfBoxGraphics2D(document, 100, 100);
+			gfx.setImageEncoder(imageEncoder);
+			gfx.drawImage(translucent, 0, 0, null);
+			gfx.drawImage(fewColors, 50, 0, null);
+			gfx.drawImage(translucent, 0, 50, null);
+			gfx.setPaint(new TexturePaint(fewColors, new Rectangle(0, 0, 40, 30)));
+			gfx.fillRect(50, 50, 50, 50);
+
+			PDImageXObject pending = imageEncoder.encodeImage(document, null, translucent);
+			assertNull(pending.getCOSObject().getItem(COSName.FILTER));
+			assertEquals(2, jobs.size());
+
+			List<Thread> threads = new ArrayList<Thread>();
+			for (Runnable job : jobs)
+				threads.add(new Thread(job));
+			for (Thread thread : threads)
+				thread.start();
+
+			/*
+			 * Neither a pattern tile nor the graphics of another document must fill in
+			 * the images of this document
+			 */
+			new PdfBoxGraphics2D(document, new PDRectangle(10, 10), gfx).dispose();
+			PDDocument otherDocument = new PDDocument();
+			try {
+				PdfBoxGraphics2D otherGfx = new PdfBoxGraphics2D(otherDocument, 10, 10);
+				otherGfx.setImageEncoder(imageEncoder);
+				otherGfx.dispose();
+			} finally {
+				otherDocument.close();
+			}
+			assertNull(pending.getCOSObject().getItem(COSName.FILTER));
+
+			gfx.dispose();
+			for (Thread thread : threads)
+				thread.join();
+
+			for (BufferedImage image : new BufferedImage[] { translucent, fewColors }) {
+				PDImageXObject imageXObject = imageEncoder.encodeImage(document, null, image);
+				BufferedImage decoded = imageXObject.getImage();
+				for (int y = 0; y < 30; y++)
+					for (int x = 0; x < 40; x++)
+						assertEquals(image.getRGB(x, y) & 0xFFFFFF, decoded.getRGB(x, y) & 0xFFFFFF);
+			}
+			assertSame(pending, imageEncoder.encodeImage(document, null, translucent));
+			assertNotNull(pending.getSoftMask());
+
+			PDPage page = new PDPage();
+			document.addPage(page);
+			PDPageContentStream contentStream = new PDPageContentStream(document, page);
+			contentStream.drawForm(gfx.getXFormObject());
+			contentStream.close();
+			ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			document.save(bout);
+			PDDocument reloaded = PDDocument.load(bout.toByteArray());
+			try {
+				new PDFRenderer(reloaded).renderImage(0);
+			} finally {
+				reloaded.close();
+			}
+		} finally {
+			document.close();
+		}
+	}
+
+	@Test
+	public void testTiledRenderedImage() throws IOException {
+		PDDocument document = new PDDocument();
+		try {
+			PdfBoxGraphics2DLosslessImageEncoder imageEncoder = new PdfBoxGraphics2DLosslessImageEncoder();
+			for (ColorModel colorModel : new ColorModel[] { ColorModel.getRGBdefault(),
+					new DirectColorModel(24, 0xff0000, 0xff00, 0xff) }) {
+				TiledImage image = new TiledImage(colorModel, 300, 200, 64, 32);
+				PDImageXObject imageXObject = imageEncoder.encodeRenderedImage(document, image);
+				assertNotNull(imageXObject);
+				assertSame(imageXObject, imageEncoder.encodeRenderedImage(document, image));
+				assertTrue(image.maxRequestedPixels <= 300 * 32);
+				assertEquals(colorModel.hasAlpha(), imageXObject.getCOSObject().getItem(COSName.SMASK) != null);
+				BufferedImage decoded = imageXObject.getImage();
+				for (int y = 0; y < 200; y++)
+					for (int x = 0; x < 300; x++)
+						assertEquals(image.pixel(x + image.getMinX(), y + image.getMinY()) & 0xFFFFFF,
+								decoded.getRGB(x, y) & 0xFFFFFF);
+			}
+			assertNull(new PdfBoxGraphics2DDCTImageEncoder().encodeRenderedImage(document,
+					new TiledImage(ColorModel.getRGBdefault(), 30, 20, 8, 8)));
+		} finally {
+			document.close();
+		}
+	}
+
+	/**
+	 * A RenderedImage which computes its pixels on request, like e.g. JAI images.
+	 */
+	private static class TiledImage implements RenderedImage {
+		private final ColorModel colorModel;
+		private final int width;
+		private final int height;
+		private final int tileWidth;
+		private final int tileHeight;
+		int maxRequestedPixels;
+
+		TiledImage(ColorModel colorModel, int width, int height, int tileWidth, int tileHeight) {
+			this.colorModel = colorModel;
+			this.width = width;
+			this.height = height;
+			this.tileWidth = tileWidth;
+			this.tileHeight = tileHeight;
+		}
+
+		int pixel(int x, int y) {
+			return (x * 3) << 16 | (y * 5) << 8 | (x ^ y) & 0xFF | (x + y) << 24;
+		}
+
+		public Vector<RenderedImage> getSources() {
+			return null;
+		}
+
+		public Object getProperty(String name) {
+			return Image.UndefinedProperty;
+		}
+
+		public String[] getPropertyNames() {
+			return null;
+		}
+
+		public ColorModel getColorModel() {
+			return colorModel;
+		}
+
+		public SampleModel getSampleModel() {
+			return colorModel.createCompatibleSampleModel(tileWidth, tileHeight);
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		public int getMinX() {
+			return 5;
+		}
+
+		public int getMinY() {
+			return 7;
+		}
+
+		public int getNumXTiles() {
+			return (width + tileWidth - 1) / tileWidth;
+		}
+
+		public int getNumYTiles() {
+			return (height + tileHeight - 1) / tileHeight;
+		}
+
+		public int getMinTileX() {
+			return 0;
+		}
+
+		public int getMinTileY() {
+			return 0;
+		}
+
+		public int getTileWidth() {
+			return tileWidth;
+		}
+
+		public int getTileHeight() {
+			return tileHeight;
+		}
+
+		public int getTileGridXOffset() {
+			return getMinX();
+		}
+
+		public int getTileGridYOffset() {
+			return getMinY();
+		}
+
+		public Raster getTile(int tileX, int tileY) {
+			return getData(new Rectangle(getMinX() + tileX * tileWidth, getMinY() + tileY * tileHeight, tileWidth,
+					tileHeight));
+		}
+
+		public Raster getData() {
+			return getData(new Rectangle(getMinX(), getMinY(), width, height));
+		}
+
+		public Raster getData(Rectangle rect) {
+			maxRequestedPixels = Math.max(maxRequestedPixels, rect.width * rect.height);
+			WritableRaster raster = colorModel.createCompatibleWritableRaster(rect.width, rect.height)
+					.createWritableTranslatedChild(rect.x, rect.y);
+			return copyData(raster);
+		}
+
+		public WritableRaster copyData(WritableRaster raster) {
+			for (int y = raster.getMinY(); y < raster.getMinY() + raster.getHeight(); y++)
+				for (int x = raster.getMinX(); x < raster.getMinX() + raster.getWidth(); x++)
+					raster.setDataElements(x, y, colorModel.getDataElements(pixel(x, y), null));
+			return raster;
+		}
+	}
+
+	private static BufferedImage copy(BufferedImage image) {
+		return new BufferedImage(image.getColorModel(), image.copyData(null), image.isAlphaPremultiplied(), null);
+	}
+
+	private BufferedImage loadImage() throws IOException {
+		return ImageIO.read(PdfBoxGraphics2DLosslessImageEncoderTest.class.getResourceAsStream("colortest.png"));
+	}
+}
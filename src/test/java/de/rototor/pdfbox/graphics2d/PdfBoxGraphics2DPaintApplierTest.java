@@ -0,0 +1,284 @@
+package de.rototor.pdfbox.graphics2d;
+
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColor;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.shading.PDShading;
+import org.apache.pdfbox.pdmodel.graphics.shading.PDShadingType2;
+import org.apache.pdfbox.util.Matrix;
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PdfBoxGraphics2DPaintApplierTest {
+
+	private interface Drawing {
+		void draw(PdfBoxGraphics2D gfx);
+	}
+
+	@Test
+	public void testGradientReused() throws IOException {
+		final GradientPaint gradientPaint = new GradientPaint(0, 0, Color.blue, 100, 100, Color.red);
+		assertReused(new Drawing() {
+			@Override
+			public void draw(PdfBoxGraphics2D gfx) {
+				gfx.setPaint(gradientPaint);
+				gfx.fillRect(10, 10, 100, 100);
+			}
+		}, COSName.SHADING);
+
+		/*
+		 * Equal gradients, which are different objects, share the shading
+		 */
+		assertReused(new Drawing() {
+			@Override
+			public void draw(PdfBoxGraphics2D gfx) {
+				gfx.setPaint(new LinearGradientPaint(0, 0, 100, 0, new float[] { 0f, 0.5f, 1f },
+						new Color[] { Color.green, new Color(0, 0, 255, 128), Color.yellow }));
+				gfx.fillOval(10, 10, 50, 50);
+			}
+		}, COSName.SHADING);
+	}
+
+	@Test
+	public void testStrokedGradientReused() throws IOException {
+		final GradientPaint gradientPaint = new GradientPaint(0, 0, Color.blue, 100, 100, Color.red);
+		Drawing drawing = new Drawing() {
+			@Override
+			public void draw(PdfBoxGraphics2D gfx) {
+				gfx.setPaint(gradientPaint);
+				gfx.setStroke(new BasicStroke(5));
+				gfx.drawLine(10, 10, 100, 100);
+			}
+		};
+
+		/*
+		 * The tiling pattern covers the whole XForm, so it is shared within it
+		 */
+		PDDocument document = new PDDocument();
+		try {
+			PDFormXObject form = draw(document, new PdfBoxGraphics2DPaintApplier(),
+					new PdfBoxGraphics2DLosslessImageEncoder(), drawing, drawing);
+			assertEquals(1, resourceNames(form.getResources(), COSName.PATTERN).size());
+		} finally {
+			document.close();
+		}
+	}
+
+	@Test
+	public void testTranslucentColorReused() throws IOException {
+		assertReused(new Drawing() {
+			@Override
+			public void draw(PdfBoxGraphics2D gfx) {
+				gfx.setColor(new Color(255, 0, 0, 100));
+				gfx.fillRect(10, 10, 100, 100);
+			}
+		}, COSName.EXT_G_STATE);
+	}
+
+	@Test
+	public void testTextureReused() throws IOException {
+		BufferedImage image = new BufferedImage(8, 8, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < 8; y++)
+			for (int x = 0; x < 8; x++)
+				image.setRGB(x, y, (x + y) % 2 == 0 ? 0xFF0000 : 0x0000FF);
+		final TexturePaint texturePaint = new TexturePaint(image, new Rectangle(0, 0, 8, 8));
+		assertReused(new Drawing() {
+			@Override
+			public void draw(PdfBoxGraphics2D gfx) {
+				gfx.setPaint(texturePaint);
+				gfx.fillRect(10, 10, 100, 100);
+			}
+		}, COSName.PATTERN);
+	}
+
+	@Test
+	public void testPaintCacheOffForSubclasses() throws IOException {
+		final int[] calls = new int[1];
+		PdfBoxGraphics2DPaintApplier paintApplier = new PdfBoxGraphics2DPaintApplier() {
+			@Override
+			protected void applyAsStrokingColor(Color color, PaintApplierState state) throws IOException {
+				calls[0]++;
+				super.applyAsStrokingColor(color, state);
+			}
+		};
+		GradientPaint gradientPaint = new GradientPaint(0, 0, Color.blue, 100, 100, Color.red);
+		PDDocument document = new PDDocument();
+		try {
+			PdfBoxGraphics2D gfx = new PdfBoxGraphics2D(document, 200, 200);
+			gfx.setPaintApplier(paintApplier);
+			gfx.setPaint(gradientPaint);
+			gfx.fillRect(0, 0, 10, 10);
+			gfx.fillRect(20, 0, 10, 10);
+			gfx.dispose();
+		} finally {
+			document.close();
+		}
+		assertEquals(2, calls[0]);
+	}
+
+	@Test
+	public void testOpaqueColorMappedPerDocument() throws IOException {
+		final int[] calls = new int[1];
+		IPdfBoxGraphics2DColorMapper colorMapper = new PdfBoxGraphics2DColorMapper() {
+			@Override
+			public PDColor mapColor(PDPageContentStream contentStream, Color color) {
+				calls[0]++;
+				return super.mapColor(contentStream, color);
+			}
+		};
+		PdfBoxGraphics2DPaintApplier paintApplier = new PdfBoxGraphics2DPaintApplier();
+		for (int i = 0; i < 2; i++) {
+			PDDocument document = new PDDocument();
+			try {
+				PdfBoxGraphics2D gfx = new PdfBoxGraphics2D(document, 200, 200);
+				gfx.setColorMapper(colorMapper);
+				gfx.setPaintApplier(paintApplier);
+				gfx.setColor(Color.red);
+				gfx.fillRect(0, 0, 10, 10);
+				gfx.fillRect(20, 0, 10, 10);
+				gfx.dispose();
+			} finally {
+				document.close();
+			}
+			/*
+			 * The mapped color of the first document must not be used in the second one
+			 */
+			assertEquals(i + 1, calls[0]);
+		}
+	}
+
+	@Test
+	public void testImportedShadingsShareObjects() throws IOException {
+		PDDocument sourceDocument = new PDDocument();
+		PDDocument document = new PDDocument();
+		try {
+			COSStream iccStream = sourceDocument.getDocument().createCOSStream();
+			OutputStream out = iccStream.createOutputStream();
+			out.write(ICC_Profile.getInstance(ColorSpace.CS_sRGB).getData());
+			out.close();
+			iccStream.setInt(COSName.N, 3);
+
+			PdfBoxGraphics2D gfx = new PdfBoxGraphics2D(document, 200, 200);
+			for (int i = 0; i < 2; i++) {
+				COSArray colorSpace = new COSArray();
+				colorSpace.add(COSName.ICCBASED);
+				colorSpace.add(iccStream);
+				PDShadingType2 shading = new PDShadingType2(new COSDictionary());
+				shading.setShadingType(PDShading.SHADING_TYPE2);
+				shading.getCOSObject().setItem(COSName.COLORSPACE, colorSpace);
+				COSArray coords = new COSArray();
+				coords.setFloatArray(new float[] { 0, 0, 100 + i * 50, 0 });
+				shading.setCoords(coords);
+				COSDictionary function = new COSDictionary();
+				function.setInt(COSName.FUNCTION_TYPE, 2);
+				COSArray domain = new COSArray();
+				domain.setFloatArray(new float[] { 0, 1 });
+				function.setItem(COSName.DOMAIN, domain);
+				COSArray c1 = new COSArray();
+				c1.setFloatArray(new float[] { 1, 0, 0 });
+				function.setItem(COSName.C1, c1);
+				function.setInt(COSName.N, 1);
+				shading.getCOSObject().setItem(COSName.FUNCTION, function);
+
+				gfx.setPaint(shading.toPaint(new Matrix()));
+				gfx.fillRect(0, i * 100, 200, 100);
+			}
+			gfx.dispose();
+
+			COSDictionary shadings = gfx.getXFormObject().getResources().getCOSObject()
+					.getCOSDictionary(COSName.SHADING);
+			List<COSName> names = new ArrayList<COSName>(shadings.keySet());
+			assertEquals(2, names.size());
+			COSBase firstProfile = iccProfile(shadings.getDictionaryObject(names.get(0)));
+			assertTrue(firstProfile instanceof COSStream);
+			assertNotSame(iccStream, firstProfile);
+			assertSame(firstProfile, iccProfile(shadings.getDictionaryObject(names.get(1))));
+		} finally {
+			document.close();
+			sourceDocument.close();
+		}
+	}
+
+	private static COSBase iccProfile(COSBase shading) {
+		COSArray colorSpace = (COSArray) ((COSDictionary) shading).getDictionaryObject(COSName.COLORSPACE);
+		return colorSpace.getObject(1);
+	}
+
+	/**
+	 * Draw the same thing on two graphics, which share the paint applier and the
+	 * image encoder. The
+	 * second one must use the resource of the first one and write the same
+	 * operators.
+	 */
+	private static void assertReused(Drawing drawing, COSName resourceType) throws IOException {
+		PDDocument document = new PDDocument();
+		try {
+			PdfBoxGraphics2DPaintApplier paintApplier = new PdfBoxGraphics2DPaintApplier();
+			PdfBoxGraphics2DLosslessImageEncoder imageEncoder = new PdfBoxGraphics2DLosslessImageEncoder();
+			PDFormXObject first = draw(document, paintApplier, imageEncoder, drawing);
+			PDFormXObject second = draw(document, paintApplier, imageEncoder, drawing);
+
+			List<COSName> firstNames = resourceNames(first.getResources(), resourceType);
+			List<COSName> secondNames = resourceNames(second.getResources(), resourceType);
+			assertEquals(1, firstNames.size());
+			assertEquals(firstNames, secondNames);
+			assertSame(
+					first.getResources().getCOSObject().getCOSDictionary(resourceType)
+							.getDictionaryObject(firstNames.get(0)),
+					second.getResources().getCOSObject().getCOSDictionary(resourceType)
+							.getDictionaryObject(secondNames.get(0)));
+			assertEquals(operators(first), operators(second));
+		} finally {
+			document.close();
+		}
+	}
+
+	private static PDFormXObject draw(PDDocument document, IPdfBoxGraphics2DPaintApplier paintApplier,
+			IPdfBoxGraphics2DImageEncoder imageEncoder, Drawing... drawings) throws IOException {
+		PdfBoxGraphics2D gfx = new PdfBoxGraphics2D(document, 200, 200);
+		gfx.setPaintApplier(paintApplier);
+		gfx.setImageEncoder(imageEncoder);
+		for (Drawing drawing : drawings)
+			drawing.draw(gfx);
+		gfx.dispose();
+		return gfx.getXFormObject();
+	}
+
+	private static List<COSName> resourceNames(PDResources resources, COSName resourceType) {
+		List<COSName> names = new ArrayList<COSName>();
+		if (resources.getCOSObject().getCOSDictionary(resourceType) != null)
+			names.addAll(resources.getCOSObject().getCOSDictionary(resourceType).keySet());
+		return names;
+	}
+
+	private static List<String> operators(PDFormXObject form) throws IOException {
+		PDFStreamParser parser = new PDFStreamParser(form);
+		parser.parse();
+		List<String> tokens = new ArrayList<String>();
+		for (Object token : parser.getTokens())
+			tokens.add(token instanceof Operator ? ((Operator) token).getName() : token.toString());
+		return tokens;
+	}
+}
@@ -139,6 +139,96 @@ public class PdfBoxGraphics2dTest extends PdfBoxGraphics2DTestBase {
 		});
 	}
 
+	@Test
+	public void testImageDownsampling() {
+		exportGraphic("imageenc", "downsampled", new GraphicsExporter() {
+			@Override
+			public void draw(Graphics2D gfx) throws IOException {
+				if (gfx instanceof PdfBoxGraphics2D)
+					((PdfBoxGraphics2D) gfx).setMaxImageResolution(72);
+				BufferedImage img3 = ImageIO.read(PdfBoxGraphics2dTest.class.getResourceAsStream("Rose-ProPhoto.jpg"));
+				BufferedImage img4 = ImageIO.read(PdfBoxGraphics2dTest.class.getResourceAsStream("Italy-P3.jpg"));
+				BufferedImage img5 = ImageIO.read(PdfBoxGraphics2dTest.class.getResourceAsStream("16bit-image1.png"));
+
+				gfx.drawImage(img3, 30, 200, 75, 50, null);
+				gfx.drawImage(img3, 130, 200, 150, 100, null);
+				gfx.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+						RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+				gfx.drawImage(img4, 170, 10, 60, 40, null);
+				gfx.drawImage(img5, 270, 30, 8, 8, null);
+			}
+		});
+	}
+
+	@Test
+	public void testSubImages() {
+		exportGraphic("imageenc", "subImages", new GraphicsExporter() {
+			@Override
+			public void draw(Graphics2D gfx) throws IOException {
+				if (gfx instanceof PdfBoxGraphics2D)
+					((PdfBoxGraphics2D) gfx).setExtractSubImages(true);
+				BufferedImage img = ImageIO.read(PdfBoxGraphics2dTest.class.getResourceAsStream("colortest.png"));
+
+				gfx.drawImage(img, 20, 20, 120, 120, 0, 0, 200, 200, null);
+				gfx.drawImage(img, 140, 20, 190, 70, 20, 30, 70, 80, null);
+				gfx.drawImage(img, 200, 20, 250, 70, 20, 30, 70, 80, null);
+				gfx.drawImage(img, 260, 20, 360, 70, 120, 150, 70, 180, null);
+				gfx.drawImage(img, 20, 140, 220, 240, 100, 0, 200, 100, Color.yellow, null);
+			}
+		});
+	}
+
+	@Test
+	public void testEncodedImages() {
+		exportGraphic("imageenc", "encoded", new GraphicsExporter() {
+			@Override
+			public void draw(Graphics2D gfx) throws IOException {
+				PdfBoxGraphics2DEncodedImage[] images = {
+						PdfBoxGraphics2DEncodedImage
+								.fromStream(PdfBoxGraphics2dTest.class.getResourceAsStream("Rose-ProPhoto.jpg")),
+						PdfBoxGraphics2DEncodedImage
+								.fromStream(PdfBoxGraphics2dTest.class.getResourceAsStream("colortest.png")),
+						PdfBoxGraphics2DEncodedImage
+								.fromStream(PdfBoxGraphics2dTest.class.getResourceAsStream("pixeltest.png")) };
+				Image[] toDraw = new Image[images.length];
+				for (int i = 0; i < images.length; i++)
+					toDraw[i] = gfx instanceof PdfBoxGraphics2D ? images[i] : images[i].decode();
+
+				gfx.drawImage(toDraw[0], 30, 50, 150, 100, null);
+				gfx.drawImage(toDraw[1], 200, 50, 100, 100, null);
+				gfx.drawImage(toDraw[2], 320, 50, 50, 50, null);
+			}
+		});
+	}
+
+	@Test
+	public void testGradientFunctions() {
+		exportGraphic("simple", "gradientFunctions", new GraphicsExporter() {
+			@Override
+			public void draw(Graphics2D gfx) {
+				if (gfx instanceof PdfBoxGraphics2D) {
+					PdfBoxGraphics2DPaintApplier paintApplier = new PdfBoxGraphics2DPaintApplier();
+					paintApplier.setSampledFunctionMinStops(5);
+					((PdfBoxGraphics2D) gfx).setPaintApplier(paintApplier);
+				}
+				float[] fractions = new float[] { 0f, 0.2f, 0.4f, 0.6f, 0.8f, 1f };
+				Color[] colors = new Color[] { Color.red, Color.orange, Color.yellow, Color.green, Color.blue,
+						Color.magenta };
+				gfx.setPaint(new LinearGradientPaint(10, 10, 190, 10, new float[] { 0f, 1f },
+						new Color[] { Color.blue, Color.red }));
+				gfx.fillRect(10, 10, 180, 50);
+				gfx.setPaint(new LinearGradientPaint(10, 70, 190, 70, new float[] { 0f, 0.5f, 1f },
+						new Color[] { Color.blue, Color.white, Color.red }));
+				gfx.fillRect(10, 70, 180, 50);
+				gfx.setPaint(new LinearGradientPaint(10, 130, 190, 130, fractions, colors));
+				gfx.fillRect(10, 130, 180, 50);
+				gfx.fillRect(10, 190, 180, 50);
+				gfx.setPaint(new RadialGradientPaint(300, 100, 80, fractions, colors));
+				gfx.fillOval(220, 20, 160, 160);
+			}
+		});
+	}
+
 	@Test
 	public void testEvenOddRules() {
 